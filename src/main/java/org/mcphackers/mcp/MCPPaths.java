@@ -12,6 +12,7 @@ public class MCPPaths {
 	public static final String CONF = "conf/";
 	public static final String BUILD = "build/";
 	public static final String PROJECT = "minecraft_%s/";
+	public static final String CACHE = "cache/";
 
 	//Files and subdirectories
 	public static final String JAR_ORIGINAL = JARS + "minecraft_%s.jar";
@@ -27,6 +28,8 @@ public class MCPPaths {
 	public static final String MD5_DIR = PROJECT + "md5";
 	public static final String MD5 = PROJECT + "md5/original.md5";
 	public static final String MD5_RO = PROJECT + "md5/modified.md5";
+	public static final String DECOMPILE_REPORT = PROJECT + "decompile.json";
+	public static final String RECOMPILE_INDEX = PROJECT + "recompile.index";
 	public static final String JARS_DIR = PROJECT + "jars";
 	public static final String REMAPPED = PROJECT + "jars/deobfuscated.jar";
 	public static final String REOBF_JAR = PROJECT + "jars/reobfuscated.jar";
@@ -34,9 +37,13 @@ public class MCPPaths {
 	public static final String REOBF_SIDE = PROJECT + "reobf";
 	public static final String GAMEDIR = PROJECT + "game/";
 
+	public static final String DECOMPILE_CACHE = CACHE + "decompile";
+	public static final String RDI_CACHE = CACHE + "rdi";
+
 	public static final String MAPPINGS = CONF + "mappings.tiny";
 	public static final String EXC = CONF + "exceptions.exc";
 	public static final String ACCESS = CONF + "%s.access";
+	public static final String GL_CONSTANTS = CONF + "gl_constants.json";
 	public static final String PATCHES = CONF + "%s.patch";
 	public static final String VERSION = CONF + "version.json";
 
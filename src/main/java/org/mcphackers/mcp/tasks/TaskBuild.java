@@ -2,14 +2,22 @@ package org.mcphackers.mcp.tasks;
 
 import static org.mcphackers.mcp.MCPPaths.*;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.compiler.ClassOutput;
+import org.mcphackers.mcp.tools.zip.ZipArchive;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
 
 public class TaskBuild extends TaskStaged {
 	/*
@@ -18,6 +26,9 @@ public class TaskBuild extends TaskStaged {
 	public static final int STAGE_RECOMPILE = 0;
 	public static final int STAGE_REOBF = 1;
 	public static final int STAGE_BUILD = 2;
+	private static final List<String> SIGNATURE_FILES = Arrays.asList("META-INF/MOJANG_C.DSA", "META-INF/MOJANG_C.SF", "META-INF/CODESIGN.DSA", "META-INF/CODESIGN.SF");
+	private ClassOutput classes;
+	private TaskReobfuscate reobf;
 
 	public TaskBuild(Side side, MCP instance) {
 		super(side, instance);
@@ -28,40 +39,76 @@ public class TaskBuild extends TaskStaged {
 		Path bin = MCPPaths.get(mcp, BIN, side);
 		return new Stage[]{
 				stage(getLocalizedStage("recompile"),
-						() -> new TaskRecompile(side, mcp, this).doTask()),
+						() -> {
+							TaskRecompile recompile = new TaskRecompile(side, mcp, this).deferFlush();
+							recompile.doTask();
+							classes = recompile.getOutput();
+						}),
 				stage(getLocalizedStage("reobf"), 50,
-						() -> new TaskReobfuscate(side, mcp, this).doTask()),
+						() -> {
+							reobf = new TaskReobfuscate(side, mcp, this)
+									.setClasses(classes)
+									.setWriteOutput(mcp.getOptions().getBooleanParameter(TaskParameter.OUTPUT_REOBF));
+							reobf.doTask();
+						}),
 				stage(getLocalizedStage("build"), 70,
 						() -> {
+							if (classes != null) {
+								classes.awaitFlush();
+							}
 							Side[] sides = side == Side.MERGED ? new Side[]{Side.CLIENT, Side.SERVER} : new Side[]{side};
 							for (Side localSide : sides) {
 								Path originalJar = MCPPaths.get(mcp, JAR_ORIGINAL, localSide);
-								Path reobfDir = MCPPaths.get(mcp, REOBF_SIDE, localSide);
 								Path buildJar = MCPPaths.get(mcp, BUILD_JAR, localSide);
 								Path buildZip = MCPPaths.get(mcp, BUILD_ZIP, localSide);
 								FileUtil.createDirectories(MCPPaths.get(mcp, BUILD));
+								Map<String, byte[]> reobfClasses = reobf.getReobfuscated(localSide);
+								List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
+								int level = mcp.getOptions().getIntParameter(TaskParameter.COMPRESSION_LEVEL);
 								if (mcp.getOptions().getBooleanParameter(TaskParameter.FULL_BUILD)) {
 									Files.deleteIfExists(buildJar);
-									Files.copy(originalJar, buildJar);
-									List<Path> reobfClasses = FileUtil.walkDirectory(reobfDir, path -> !Files.isDirectory(path));
-									FileUtil.packFilesToZip(buildJar, reobfClasses, reobfDir);
-									List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
-									FileUtil.packFilesToZip(buildJar, assets, bin);
-									FileUtil.deleteFileInAZip(buildJar, "/META-INF/MOJANG_C.DSA");
-									FileUtil.deleteFileInAZip(buildJar, "/META-INF/MOJANG_C.SF");
-									FileUtil.deleteFileInAZip(buildJar, "/META-INF/CODESIGN.DSA");
-									FileUtil.deleteFileInAZip(buildJar, "/META-INF/CODESIGN.SF");
+									writeBuild(buildJar, originalJar, reobfClasses, assets, bin, level);
 								} else {
 									Files.deleteIfExists(buildZip);
-									FileUtil.compress(reobfDir, buildZip);
-									List<Path> assets = FileUtil.walkDirectory(bin, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".class"));
-									FileUtil.packFilesToZip(buildZip, assets, bin);
+									writeBuild(buildZip, null, reobfClasses, assets, bin, level);
 								}
 							}
 						})
 		};
 	}
 
+	/**
+	 * Writes reobfuscated classes and resources in a single pass.
+	 * Entries of the base jar are copied without recompressing them, new entries are compressed in parallel
+	 *
+	 * @param baseJar jar whose entries are copied unless replaced, or <code>null</code>
+	 */
+	private static void writeBuild(Path output, Path baseJar, Map<String, byte[]> classes, List<Path> assets, Path bin, int level) throws IOException {
+		Map<String, Path> assetNames = new TreeMap<>();
+		for (Path asset : assets) {
+			assetNames.put(bin.relativize(asset).toString().replace("\\", "/"), asset);
+		}
+		try (ZipWriter zipOut = new ZipWriter(output, level)) {
+			if (baseJar != null) {
+				try (ZipArchive original = new ZipArchive(baseJar)) {
+					for (ZipArchive.Entry entry : original.getEntries()) {
+						String name = entry.name;
+						if (SIGNATURE_FILES.contains(name) || classes.containsKey(name) || assetNames.containsKey(name)) {
+							continue;
+						}
+						zipOut.copy(original, entry);
+					}
+				}
+			}
+			List<String> names = new ArrayList<>(classes.keySet());
+			names.addAll(assetNames.keySet());
+			zipOut.writeAll(names, name -> {
+				byte[] bytes = classes.get(name);
+				return bytes != null ? bytes : Files.readAllBytes(assetNames.get(name));
+			}, Runtime.getRuntime().availableProcessors());
+		}
+	}
+
 	@Override
 	public void setProgress(int progress) {
 		switch (step) {
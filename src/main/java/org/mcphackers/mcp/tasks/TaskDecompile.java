@@ -5,23 +5,41 @@ import org.mcphackers.mcp.MCPPaths;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.ClassUtils;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.fernflower.DecompileReport;
 import org.mcphackers.mcp.tools.fernflower.Decompiler;
+import org.mcphackers.mcp.tools.fernflower.SourceResultSaver;
+import org.mcphackers.mcp.tools.injector.GLConstantTables;
 import org.mcphackers.mcp.tools.injector.GLConstants;
+import org.mcphackers.mcp.tools.injector.InjectorCache;
+import org.mcphackers.mcp.tools.injector.ParallelTransform;
 import org.mcphackers.mcp.tools.mappings.MappingUtil;
 import org.mcphackers.mcp.tools.project.EclipseProjectWriter;
 import org.mcphackers.mcp.tools.project.IdeaProjectWriter;
 import org.mcphackers.mcp.tools.source.Source;
+import org.mcphackers.mcp.tools.zip.ZipArchive;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
 import org.mcphackers.rdi.injector.data.ClassStorage;
 import org.mcphackers.rdi.injector.data.Mappings;
 import org.mcphackers.rdi.injector.transform.Transform;
 import org.mcphackers.rdi.nio.IOUtil;
 import org.mcphackers.rdi.nio.MappingsIO;
 import org.mcphackers.rdi.nio.RDInjector;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.tree.ClassNode;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.mcphackers.mcp.MCPPaths.*;
 
@@ -30,6 +48,8 @@ public class TaskDecompile extends TaskStaged {
 	public static final int STAGE_MD5 = 5;
 
 	private int classVersion = -1;
+	private Map<String, byte[]> classes;
+	private Future<?> remappedJar;
 
 	public TaskDecompile(Side side, MCP instance) {
 		super(side, instance);
@@ -59,96 +79,295 @@ public class TaskDecompile extends TaskStaged {
 		final Path ffOut = MCPPaths.get(mcp, SOURCE_UNPATCHED, side);
 		final Path srcPath = MCPPaths.get(mcp, SOURCE, side);
 		final Path patchesPath = MCPPaths.get(mcp, PATCHES, side);
+		final Path sourceJar = MCPPaths.get(mcp, SOURCE_JAR, side);
+		final boolean applyPatches = mcp.getOptions().getBooleanParameter(TaskParameter.PATCHES) && Files.exists(patchesPath);
+		final boolean modifySource = applyPatches || !MCP.SOURCE_ADAPTERS.isEmpty();
+		final boolean outputSrc = mcp.getOptions().getBooleanParameter(TaskParameter.OUTPUT_SRC);
+		final boolean resources = mcp.getOptions().getBooleanParameter(TaskParameter.DECOMPILE_RESOURCES);
+		final int compressionLevel = mcp.getOptions().getIntParameter(TaskParameter.COMPRESSION_LEVEL);
+		final String[] ignoredPackages = outputSrc ? mcp.getOptions().getStringArrayParameter(TaskParameter.IGNORED_PACKAGES) : new String[0];
 
 		return new Stage[]{stage(getLocalizedStage("prepare"), 0, () -> {
-			FileUtil.cleanDirectory(MCPPaths.get(mcp, PROJECT, side));
+			FileUtil.cleanDirectoryInBackground(MCPPaths.get(mcp, PROJECT, side));
 			FileUtil.createDirectories(MCPPaths.get(mcp, JARS_DIR, side));
 			FileUtil.createDirectories(MCPPaths.get(mcp, MD5_DIR, side));
 			Files.createDirectories(MCPPaths.get(mcp, GAMEDIR, side));
 		}), stage(getLocalizedStage("rdi"), 2, () -> {
-			ClassStorage storage = applyInjector();
-			for (ClassNode node : storage) {
+			InjectorCache injectorCache = null;
+			if (mcp.getOptions().getBooleanParameter(TaskParameter.BUILD_CACHE)) {
+				injectorCache = new InjectorCache(MCPPaths.get(mcp, RDI_CACHE), getInjectorInputs(), getInjectorFlags());
+				if (injectorCache.exists()) {
+					log("Using cached " + rdiOut.getFileName());
+					classes = injectorCache.restore(rdiOut);
+					injectorCache.prune();
+					for (byte[] bytes : classes.values()) {
+						// Same value as ClassNode.version: minor version in the upper 16 bits
+						int version = (bytes[4] & 0xFF) << 24 | (bytes[5] & 0xFF) << 16 | (bytes[6] & 0xFF) << 8 | (bytes[7] & 0xFF);
+						classVersion = Math.max(classVersion, version);
+					}
+					return;
+				}
+			}
+			final InjectorCache cacheOutput = injectorCache;
+			RDInjector injector = applyInjector();
+			classes = new HashMap<>();
+			for (ClassNode node : injector.getStorage()) {
 				classVersion = Math.max(classVersion, node.version);
+				ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+				node.accept(writer);
+				classes.put(node.name + ".class", writer.toByteArray());
 			}
+			// Decompiler reads classes from memory, the jar is only needed by later tasks
+			final Map<String, byte[]> remapped = classes;
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			remappedJar = executor.submit(() -> {
+				writeRemappedJar(remapped, rdiOut, compressionLevel);
+				if (cacheOutput != null) {
+					cacheOutput.store(rdiOut);
+					cacheOutput.prune();
+				}
+				return null;
+			});
+			executor.shutdown();
 		}), stage(getLocalizedStage("decompile"), () -> {
-			new Decompiler(this, rdiOut, ffOut, mcp.getLibraries(), mcp).decompile();
+			Path cacheDir = mcp.getOptions().getBooleanParameter(TaskParameter.BUILD_CACHE) ? MCPPaths.get(mcp, DECOMPILE_CACHE) : null;
+			Decompiler decompiler = new Decompiler(this, rdiOut, ffOut, mcp.getLibraries(), mcp, cacheDir);
+			if (decompiler.isSharded()) {
+				decompiler.setSourceClasses(classes, getOriginalJars());
+			} else {
+				// A single context reads the remapped jar
+				waitForRemappedJar();
+			}
+			if (!modifySource) {
+				// Nothing changes decompiled sources, save them to every destination at once
+				Files.createDirectories(srcPath);
+				SourceResultSaver saver = new SourceResultSaver(ffOut, sourceJar, outputSrc ? srcPath : null, ignoredPackages, resources);
+				saver.setCompressionLevel(compressionLevel);
+				decompiler.setResultSaver(saver);
+			}
+			try {
+				decompiler.decompile();
+			} finally {
+				classes = null;
+				waitForRemappedJar();
+			}
+			if (decompiler.isHeapLimited()) {
+				log("Decompiled with fewer threads than requested to fit into the maximum heap size");
+			}
+			if (decompiler.getCache() != null) {
+				log("Decompile cache: " + decompiler.getCache().getHits() + " hits, " + decompiler.getCache().getMisses() + " misses");
+				decompiler.getCache().prune();
+			}
+			writeReport(decompiler.log.getReport());
 			new EclipseProjectWriter().createProject(mcp, side, ClassUtils.getSourceFromClassVersion(classVersion));
 			new IdeaProjectWriter().createProject(mcp, side, ClassUtils.getSourceFromClassVersion(classVersion));
 		}), stage(getLocalizedStage("patch"), 88, () -> {
-			if (mcp.getOptions().getBooleanParameter(TaskParameter.PATCHES) && Files.exists(patchesPath)) {
+			if (applyPatches) {
 				TaskApplyPatch.patch(this, ffOut, ffOut, patchesPath);
 			}
-
-			Source.modify(ffOut, MCP.SOURCE_ADAPTERS);
-		}), stage(getLocalizedStage("copysrc"), 90, () -> {
-			if (!mcp.getOptions().getBooleanParameter(TaskParameter.DECOMPILE_RESOURCES)) {
-				for (Path p : FileUtil.walkDirectory(ffOut, p -> !Files.isDirectory(p) && !p.getFileName().toString().endsWith(".java"))) {
-					Files.delete(p);
-				}
+			if (!MCP.SOURCE_ADAPTERS.isEmpty()) {
+				Source.modify(ffOut, MCP.SOURCE_ADAPTERS);
 			}
+		}), stage(getLocalizedStage("copysrc"), 90, () -> {
 			Files.createDirectories(srcPath);
-			FileUtil.compress(ffOut, MCPPaths.get(mcp, SOURCE_JAR, side));
-			if (mcp.getOptions().getBooleanParameter(TaskParameter.OUTPUT_SRC)) {
-				FileUtil.deletePackages(ffOut, mcp.getOptions().getStringArrayParameter(TaskParameter.IGNORED_PACKAGES));
-				FileUtil.copyDirectory(ffOut, srcPath);
+			if (modifySource) {
+				copySource(ffOut, sourceJar, outputSrc ? srcPath : null, ignoredPackages, resources, compressionLevel);
 			}
 		}), stage(getLocalizedStage("recompile"), () -> new TaskUpdateMD5(side, mcp, this).doTask()),};
 	}
 
-	public ClassStorage applyInjector() throws IOException {
-		final Path rdiOut = MCPPaths.get(mcp, REMAPPED, side);
+	private void writeReport(DecompileReport report) throws IOException {
+		report.write(MCPPaths.get(mcp, DECOMPILE_REPORT, side));
+		List<DecompileReport.ClassStats> slowest = report.getSlowest(10);
+		if (!slowest.isEmpty()) {
+			log("Slowest classes:");
+			for (DecompileReport.ClassStats stats : slowest) {
+				log(String.format("  %s: %.1f ms, %d KB allocated", stats.name, DecompileReport.toMillis(stats.totalTime), stats.allocatedBytes / 1024));
+			}
+		}
+		int warnings = 0;
+		for (DecompileReport.Failure failure : report.getFailures()) {
+			if (failure.exception != null || !failure.severity.equals("WARN")) {
+				addMessage(failure.toString(), Task.WARNING);
+			} else {
+				warnings++;
+			}
+		}
+		if (warnings > 0) {
+			log(warnings + " decompiler warnings, see " + MCPPaths.get(mcp, DECOMPILE_REPORT, side));
+		}
+	}
+
+	/**
+	 * Writes the deobfuscated jar from classes already serialized for the decompiler,
+	 * resources are copied from the original jars without inflating them
+	 */
+	private void writeRemappedJar(Map<String, byte[]> classes, Path out, int level) throws IOException {
+		List<String> names = new ArrayList<>(classes.keySet());
+		Collections.sort(names);
+		try (ZipWriter writer = new ZipWriter(out, level)) {
+			writer.writeAll(names, classes::get, Runtime.getRuntime().availableProcessors());
+			for (Path jar : getOriginalJars()) {
+				try (ZipArchive archive = new ZipArchive(jar)) {
+					for (ZipArchive.Entry entry : archive.getEntries()) {
+						if (!entry.name.endsWith(".class")) {
+							writer.copy(archive, entry);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads every file of modified sources once, writing it to the source jar and source directory
+	 */
+	private static void copySource(Path ffOut, Path sourceJar, Path srcPath, String[] ignoredPackages, boolean resources, int level) throws IOException {
+		List<String> names = new ArrayList<>();
+		for (Path file : FileUtil.walkDirectory(ffOut, p -> !Files.isDirectory(p))) {
+			String name = ffOut.relativize(file).toString().replace('\\', '/');
+			if (!resources && !name.endsWith(".java")) {
+				Files.delete(file);
+				continue;
+			}
+			names.add(name);
+		}
+		Collections.sort(names);
+		try (ZipWriter writer = new ZipWriter(sourceJar, level)) {
+			writer.writeAll(names, name -> {
+				Path file = ffOut.resolve(name);
+				byte[] bytes = Files.readAllBytes(file);
+				if (srcPath != null) {
+					if (SourceResultSaver.isIgnored(name, ignoredPackages)) {
+						Files.delete(file);
+					} else {
+						Path out = srcPath.resolve(name);
+						FileUtil.createDirectories(out.getParent());
+						Files.write(out, bytes);
+					}
+				}
+				return bytes;
+			}, Runtime.getRuntime().availableProcessors());
+		}
+		if (srcPath != null) {
+			FileUtil.deleteEmptyFolders(ffOut);
+		}
+	}
+
+	/**
+	 * Reads the original jar of <code>side</code> into the injector and queues remapping
+	 */
+	private void readSide(RDInjector injector, Side side, Path mappingsPath, boolean stripGenerics) throws IOException {
+		injector.setStorage(new ClassStorage(IOUtil.readJar(MCPPaths.get(mcp, JAR_ORIGINAL, side))));
+		if (stripGenerics) {
+			injector.stripLVT();
+			injector.addTransform(Transform::stripSignatures);
+		}
+		Mappings mappings = getMappings(mappingsPath, injector.getStorage(), side);
+		if (mappings != null) {
+			injector.applyMappings(mappings);
+		}
+	}
+
+	/**
+	 * @return every file read by {@link #applyInjector()}
+	 */
+	private List<Path> getInjectorInputs() {
+		List<Path> inputs = new ArrayList<>(getOriginalJars());
+		inputs.add(MCPPaths.get(mcp, MAPPINGS));
+		inputs.add(MCPPaths.get(mcp, EXC));
+		inputs.add(MCPPaths.get(mcp, GL_CONSTANTS));
+		if (side == Side.MERGED) {
+			inputs.add(MCPPaths.get(mcp, ACCESS, Side.CLIENT));
+			inputs.add(MCPPaths.get(mcp, ACCESS, Side.SERVER));
+		} else {
+			inputs.add(MCPPaths.get(mcp, ACCESS, side));
+		}
+		return inputs;
+	}
+
+	private String getInjectorFlags() {
+		return side.name
+				+ ";generics=" + mcp.getOptions().getBooleanParameter(TaskParameter.GUESS_GENERICS)
+				+ ";stripgenerics=" + mcp.getOptions().getBooleanParameter(TaskParameter.STRIP_GENERICS);
+	}
+
+	private List<Path> getOriginalJars() {
+		if (side == Side.MERGED) {
+			return Arrays.asList(MCPPaths.get(mcp, JAR_ORIGINAL, Side.SERVER), MCPPaths.get(mcp, JAR_ORIGINAL, Side.CLIENT));
+		}
+		return Collections.singletonList(MCPPaths.get(mcp, JAR_ORIGINAL, side));
+	}
+
+	private void waitForRemappedJar() throws IOException {
+		if (remappedJar == null) {
+			return;
+		}
+		try {
+			remappedJar.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing " + MCPPaths.get(mcp, REMAPPED, side), e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to write " + MCPPaths.get(mcp, REMAPPED, side), e.getCause());
+		} finally {
+			remappedJar = null;
+		}
+	}
+
+	/**
+	 * Applies all transformations to the original jar. The result is not written anywhere,
+	 * use {@link RDInjector#write(Path)} to save it
+	 */
+	public RDInjector applyInjector() throws IOException {
 		final Path mappingsPath = MCPPaths.get(mcp, MAPPINGS);
 		final boolean guessGenerics = mcp.getOptions().getBooleanParameter(TaskParameter.GUESS_GENERICS);
 		final boolean stripGenerics = mcp.getOptions().getBooleanParameter(TaskParameter.STRIP_GENERICS);
 		final boolean hasLWJGL = side == Side.CLIENT || side == Side.MERGED;
 
 		RDInjector injector = new RDInjector();
-		Path path;
-		Mappings mappings;
 
 		if (side == Side.MERGED) {
-			path = MCPPaths.get(mcp, JAR_ORIGINAL, Side.SERVER);
-			injector.setStorage(new ClassStorage(IOUtil.readJar(path)));
-			injector.addResources(path);
-			if (stripGenerics) {
-				injector.stripLVT();
-				injector.addTransform(Transform::stripSignatures);
-			}
-			mappings = getMappings(mappingsPath, injector.getStorage(), Side.SERVER);
-			if (mappings != null) {
-				injector.applyMappings(mappings);
-			}
+			// Server and client are independent until they are merged, remap the server on another thread
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			Future<ClassStorage> server = executor.submit(() -> {
+				RDInjector serverInjector = new RDInjector();
+				readSide(serverInjector, Side.SERVER, mappingsPath, stripGenerics);
+				serverInjector.transform();
+				return serverInjector.getStorage();
+			});
+			executor.shutdown();
+			readSide(injector, Side.CLIENT, mappingsPath, stripGenerics);
+			injector.addResources(MCPPaths.get(mcp, JAR_ORIGINAL, Side.SERVER));
+			injector.addResources(MCPPaths.get(mcp, JAR_ORIGINAL, Side.CLIENT));
 			injector.transform();
-			ClassStorage serverStorage = injector.getStorage();
-
-			path = MCPPaths.get(mcp, JAR_ORIGINAL, Side.CLIENT);
-			injector.setStorage(new ClassStorage(IOUtil.readJar(path)));
-			injector.addResources(path);
-			if (stripGenerics) {
-				injector.stripLVT();
-				injector.addTransform(Transform::stripSignatures);
-			}
-			mappings = getMappings(mappingsPath, injector.getStorage(), Side.CLIENT);
-			if (mappings != null) {
-				injector.applyMappings(mappings);
+			ClassStorage serverStorage;
+			try {
+				serverStorage = server.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while remapping server", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to remap server", cause);
 			}
 			injector.mergeWith(serverStorage);
 		} else {
-			path = MCPPaths.get(mcp, JAR_ORIGINAL, side);
-			injector.setStorage(new ClassStorage(IOUtil.readJar(path)));
-			injector.addResources(path);
-			if (stripGenerics) {
-				injector.stripLVT();
-				injector.addTransform(Transform::stripSignatures);
-			}
-			mappings = getMappings(mappingsPath, injector.getStorage(), side);
-			if (mappings != null) {
-				injector.applyMappings(mappings);
-			}
+			readSide(injector, side, mappingsPath, stripGenerics);
+			injector.addResources(MCPPaths.get(mcp, JAR_ORIGINAL, side));
+		}
+		final int threads = mcp.getOptions().getIntParameter(TaskParameter.THREADS);
+		final GLConstantTables glConstants = hasLWJGL ? GLConstants.loadTables(MCPPaths.get(mcp, GL_CONSTANTS)) : null;
+		if (threads > 1) {
+			// Finish transforms which need the whole storage, then run per-class transforms in parallel
+			injector.transform();
+			ParallelTransform.apply(injector.getStorage(), threads, rangeInjector -> addPerClassTransforms(rangeInjector, glConstants));
+		} else {
+			addPerClassTransforms(injector, glConstants);
 		}
-		injector.addTransform(Transform::decomposeVars);
-		injector.addTransform(Transform::replaceCommonConstants);
-		if (hasLWJGL) injector.addVisitor(new GLConstants(null));
 		injector.restoreSourceFile();
 		injector.fixInnerClasses();
 		injector.fixImplicitConstructors();
@@ -173,8 +392,21 @@ public class TaskDecompile extends TaskStaged {
 			}
 		}
 		injector.transform();
-		injector.write(rdiOut);
-		return injector.getStorage();
+		return injector;
+	}
+
+	/**
+	 * Adds transforms which only touch one class at a time.
+	 * Used by both serial and parallel injection, so classes are transformed in the same order either way
+	 *
+	 * @param glConstants constants to replace or <code>null</code> if the side doesn't use LWJGL
+	 */
+	public static void addPerClassTransforms(RDInjector injector, GLConstantTables glConstants) {
+		injector.addTransform(Transform::decomposeVars);
+		injector.addTransform(Transform::replaceCommonConstants);
+		if (glConstants != null) {
+			injector.addVisitor(new GLConstants(null, glConstants));
+		}
 	}
 
 	@Override
@@ -4,24 +4,33 @@ import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.compiler.ClassOutput;
+import org.mcphackers.mcp.tools.compiler.CompilerService;
+import org.mcphackers.mcp.tools.compiler.DependencyIndex;
 
 import javax.tools.*;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.mcphackers.mcp.MCPPaths.*;
 
 public class TaskRecompile extends TaskStaged {
+	private ClassOutput output;
+	private boolean deferFlush;
 
 	public TaskRecompile(Side side, MCP instance) {
 		super(side, instance);
@@ -31,6 +40,22 @@ public class TaskRecompile extends TaskStaged {
 		super(side, instance, listener);
 	}
 
+	/**
+	 * Keeps compiled classes available from {@link #getOutput()} after the task is done.
+	 * The caller has to wait until they're written to bin with {@link ClassOutput#awaitFlush()}
+	 */
+	public TaskRecompile deferFlush() {
+		deferFlush = true;
+		return this;
+	}
+
+	/**
+	 * @return every class in bin or <code>null</code> if nothing was compiled
+	 */
+	public ClassOutput getOutput() {
+		return output;
+	}
+
 	public static List<Path> collectClassPath(MCP mcp, Side side) {
 		List<Path> classpath = new ArrayList<>();
 		classpath.add(MCPPaths.get(mcp, REMAPPED, side));
@@ -42,7 +67,7 @@ public class TaskRecompile extends TaskStaged {
 
 	@Override
 	protected Stage[] setStages() {
-		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		CompilerService compiler = CompilerService.getInstance();
 		if (compiler == null) {
 			throw new RuntimeException("Could not find compiling API");
 		}
@@ -52,7 +77,6 @@ public class TaskRecompile extends TaskStaged {
 				stage(getLocalizedStage("recompile"), 1,
 						() -> {
 							Files.createDirectories(binPath);
-							FileUtil.cleanDirectory(binPath);
 							setProgress(2);
 							if (!Files.exists(srcPath)) {
 								throw new IOException(side.getName() + " sources not found!");
@@ -66,6 +90,8 @@ public class TaskRecompile extends TaskStaged {
 							final List<File> src = collectSource();
 							final List<Path> classpath = collectClassPath(mcp, side);
 							final List<Path> bootclasspath = collectBootClassPath();
+							final List<Path> archives = new ArrayList<>(bootclasspath);
+							archives.addAll(classpath);
 
 							List<String> cp = new ArrayList<>();
 							classpath.forEach(p -> cp.add(p.toAbsolutePath().toString()));
@@ -88,33 +114,196 @@ public class TaskRecompile extends TaskStaged {
 								options.addAll(Arrays.asList("-bootclasspath", String.join(System.getProperty("path.separator"), bootcp)));
 							}
 
+							final Path indexPath = MCPPaths.get(mcp, RECOMPILE_INDEX, side);
+							final boolean incremental = mcp.getOptions().getBooleanParameter(TaskParameter.INCREMENTAL);
+							final String indexKey = getIndexKey(options, cp, classpath);
+							if (incremental) {
+								// Unchanged classes are read from the output directory
+								List<String> incrementalOptions = new ArrayList<>(options);
+								cp.add(0, binPath.toAbsolutePath().toString());
+								incrementalOptions.addAll(Arrays.asList("-cp", String.join(System.getProperty("path.separator"), cp)));
+								cp.remove(0);
+								setProgress(3);
+								if (recompileIncremental(compiler, src, incrementalOptions, archives, indexPath, indexKey)) {
+									output.loadMissing();
+									return;
+								}
+								log("Incremental compilation not possible, recompiling everything");
+								if (output != null) {
+									output.awaitFlush();
+								}
+							}
+							Files.deleteIfExists(indexPath);
+							FileUtil.cleanDirectoryInBackground(binPath);
+							output = new ClassOutput(binPath);
+
 							options.addAll(Arrays.asList("-cp", String.join(System.getProperty("path.separator"), cp)));
 
 							setProgress(3);
 
 							DiagnosticCollector<JavaFileObject> ds = new DiagnosticCollector<>();
-							recompile(compiler, ds, src, options);
+							if (recompile(compiler, ds, src, options, archives, output) && incremental) {
+								DependencyIndex index = new DependencyIndex();
+								for (File file : src) {
+									index.putSource(getSourceName(file.toPath()), Util.getSHA1(file.toPath()));
+								}
+								if (indexClasses(index)) {
+									writeIndex(index, indexPath, indexKey);
+								}
+							}
 						}),
 				stage(getLocalizedStage("copyres"), 50,
 						() -> {
-							// Copy assets from source folder
-							List<Path> assets = collectResources();
-							int i = 0;
-							for (Path path : assets) {
-								if (srcPath.relativize(path).getParent() != null) {
-									Files.createDirectories(binPath.resolve(srcPath.relativize(path).getParent()));
-								}
-								Files.copy(path, binPath.resolve(srcPath.relativize(path)));
-								i++;
-								setProgress(50 + (int) ((double) i / assets.size() * 49));
+							// Copy assets from source folder. bin is only read from, so hard links to the sources are enough
+							FileUtil.copyDirectory(srcPath, binPath, TaskRecompile::isResource, true);
+							if (output != null && !deferFlush) {
+								output.awaitFlush();
 							}
 						})
 		};
 	}
 
+	/**
+	 * Recompiles changed sources, sources depending on classes compiled from them and sources of their subclasses
+	 *
+	 * @return <code>false</code> if everything needs to be recompiled
+	 */
+	private boolean recompileIncremental(CompilerService compiler, List<File> src, List<String> options, List<Path> archives, Path indexPath, String indexKey) throws IOException {
+		final Path binPath = MCPPaths.get(mcp, BIN, side);
+		final DependencyIndex index = DependencyIndex.read(indexPath, indexKey);
+		if (index == null) {
+			return false;
+		}
+		output = new ClassOutput(binPath);
+		Map<String, File> files = new HashMap<>();
+		Map<String, String> hashes = new HashMap<>();
+		Set<String> changed = new HashSet<>();
+		for (File file : src) {
+			String name = getSourceName(file.toPath());
+			String hash = Util.getSHA1(file.toPath());
+			files.put(name, file);
+			hashes.put(name, hash);
+			if (!hash.equals(index.getSourceHash(name))) {
+				changed.add(name);
+			}
+		}
+		for (String name : index.getSources()) {
+			if (!files.containsKey(name)) {
+				// Deleted source, its classes are removed from bin below
+				changed.add(name);
+			}
+		}
+		if (changed.isEmpty()) {
+			log("All classes are up to date");
+			return true;
+		}
+
+		Set<String> affected = index.getAffectedSources(changed);
+		Map<String, String> constants = new HashMap<>();
+		for (String source : affected) {
+			for (String name : index.getClasses(source)) {
+				constants.put(name, index.getConstants(name));
+			}
+			deleteClasses(index, source, binPath);
+		}
+		List<File> toCompile = new ArrayList<>();
+		for (String source : affected) {
+			File file = files.get(source);
+			if (file != null) {
+				toCompile.add(file);
+			}
+		}
+		log("Recompiling " + toCompile.size() + " of " + src.size() + " source files");
+		if (toCompile.isEmpty()) {
+			writeIndex(index, indexPath, indexKey);
+			return true;
+		}
+
+		DiagnosticCollector<JavaFileObject> ds = new DiagnosticCollector<>();
+		if (!recompile(compiler, ds, toCompile, options, archives, output)) {
+			// Dependents of broken sources were deleted, next build has to be full
+			Files.deleteIfExists(indexPath);
+			return true;
+		}
+		for (File file : toCompile) {
+			String name = getSourceName(file.toPath());
+			index.putSource(name, hashes.get(name));
+		}
+		if (!indexClasses(index)) {
+			return false;
+		}
+		for (Map.Entry<String, String> entry : constants.entrySet()) {
+			String newConstants = index.getConstants(entry.getKey());
+			if (newConstants != null && !newConstants.equals(entry.getValue())) {
+				// Constants are inlined, classes using them don't reference the class they were declared in
+				log("Constants of " + entry.getKey() + " have changed");
+				return false;
+			}
+		}
+		writeIndex(index, indexPath, indexKey);
+		return true;
+	}
+
+	/**
+	 * Deletes every class compiled from <code>source</code> from bin and forgets the source.
+	 * Classes of deleted or renamed sources would otherwise stay in bin
+	 */
+	private static void deleteClasses(DependencyIndex index, String source, Path binPath) throws IOException {
+		for (String name : index.getClasses(source)) {
+			Files.deleteIfExists(binPath.resolve(name + ".class"));
+		}
+		index.removeSource(source);
+	}
+
+	/**
+	 * Writes the index once every class it lists is written to bin,
+	 * so an interrupted build can't leave an index pointing at missing classes
+	 */
+	private void writeIndex(DependencyIndex index, Path indexPath, String indexKey) throws IOException {
+		output.awaitFlush();
+		index.write(indexPath, indexKey);
+	}
+
+	/**
+	 * Adds every compiled class missing from the index
+	 *
+	 * @return <code>false</code> if one of the classes couldn't be indexed
+	 */
+	private boolean indexClasses(DependencyIndex index) {
+		for (Map.Entry<String, byte[]> entry : output.getClasses().entrySet()) {
+			if (!index.hasClass(entry.getKey()) && !index.addClass(entry.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getSourceName(Path file) {
+		return MCPPaths.get(mcp, SOURCE, side).relativize(file).toString().replace('\\', '/');
+	}
+
+	/**
+	 * @return string identifying compiler options and state of the classpath
+	 */
+	private static String getIndexKey(List<String> options, List<String> cp, List<Path> classpath) throws IOException {
+		StringBuilder key = new StringBuilder(String.join(" ", options));
+		key.append(" -cp ").append(String.join(System.getProperty("path.separator"), cp));
+		for (Path path : classpath) {
+			if (Files.exists(path)) {
+				key.append(';').append(Files.size(path)).append(':').append(Files.getLastModifiedTime(path).toMillis());
+			}
+		}
+		return key.toString().replace('\n', ' ');
+	}
+
 	public List<Path> collectResources() throws IOException {
 		Path srcPath = MCPPaths.get(mcp, SOURCE, side);
-		return FileUtil.walkDirectory(srcPath, path -> !Files.isDirectory(path) && !path.getFileName().toString().endsWith(".java") && !path.getFileName().toString().endsWith(".class"));
+		return FileUtil.walkDirectory(srcPath, path -> !Files.isDirectory(path) && isResource(path));
+	}
+
+	private static boolean isResource(Path path) {
+		String fileName = path.getFileName().toString();
+		return !fileName.endsWith(".java") && !fileName.endsWith(".class");
 	}
 
 	public List<Path> collectBootClassPath() throws IOException {
@@ -142,12 +331,13 @@ public class TaskRecompile extends TaskStaged {
 		return src;
 	}
 
-	public void recompile(JavaCompiler compiler, DiagnosticCollector<JavaFileObject> ds, Iterable<File> src, Iterable<String> recompileOptions) throws IOException, RuntimeException {
-		StandardJavaFileManager mgr = compiler.getStandardFileManager(ds, null, StandardCharsets.UTF_8);
-		Iterable<? extends JavaFileObject> sources = mgr.getJavaFileObjectsFromFiles(src);
-		JavaCompiler.CompilationTask task = compiler.getTask(null, mgr, ds, recompileOptions, null, sources);
-		mgr.close();
-		task.call();
+	/**
+	 * @param archives classpath and bootclasspath entries passed in <code>recompileOptions</code>
+	 * @param output   receives compiled classes or <code>null</code> to write them to disk directly
+	 * @return <code>true</code> if compilation succeeded
+	 */
+	public boolean recompile(CompilerService compiler, DiagnosticCollector<JavaFileObject> ds, Iterable<File> src, Iterable<String> recompileOptions, List<Path> archives, ClassOutput output) throws IOException, RuntimeException {
+		boolean success = compiler.compile(src, recompileOptions, archives, ds, output);
 		for (Diagnostic<? extends JavaFileObject> diagnostic : ds.getDiagnostics())
 			if (diagnostic.getKind() == Diagnostic.Kind.ERROR || diagnostic.getKind() == Diagnostic.Kind.WARNING) {
 				String[] kindString = {"Info", "Warning", "Error"};
@@ -165,6 +355,6 @@ public class TaskRecompile extends TaskStaged {
 							kind);
 				}
 			}
-		mgr.close();
+		return success;
 	}
 }
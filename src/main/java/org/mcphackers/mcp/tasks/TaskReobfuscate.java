@@ -6,26 +6,50 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
+import org.mcphackers.mcp.tasks.mode.TaskMode;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.compiler.ClassOutput;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
 import org.mcphackers.mcp.tools.mappings.MappingUtil;
 import org.mcphackers.rdi.injector.data.ClassStorage;
 import org.mcphackers.rdi.injector.data.Mappings;
-import org.mcphackers.rdi.nio.ClassStorageWriter;
 import org.mcphackers.rdi.nio.MappingsIO;
 import org.mcphackers.rdi.nio.RDInjector;
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
 
 public class TaskReobfuscate extends TaskStaged {
+	private ClassOutput classes;
+	private boolean writeOutput = true;
+	/**
+	 * Side -> entry name -> bytes of every reobfuscated class which should be shipped
+	 */
+	private final Map<Side, Map<String, byte[]>> reobfuscated = new HashMap<>();
 
 	public TaskReobfuscate(Side side, MCP instance) {
 		super(side, instance);
@@ -35,6 +59,32 @@ public class TaskReobfuscate extends TaskStaged {
 		super(side, instance, listener);
 	}
 
+	/**
+	 * Reobfuscates classes from memory instead of reading them from bin
+	 *
+	 * @param classes output of {@link TaskRecompile}
+	 */
+	public TaskReobfuscate setClasses(ClassOutput classes) {
+		this.classes = classes;
+		return this;
+	}
+
+	/**
+	 * @param writeOutput whether reobfuscated classes should be written to the reobf directory.
+	 *                    If not, they're only available from {@link #getReobfuscated(Side)}
+	 */
+	public TaskReobfuscate setWriteOutput(boolean writeOutput) {
+		this.writeOutput = writeOutput;
+		return this;
+	}
+
+	/**
+	 * @return entry name -> bytes of modified classes, sorted by name, or <code>null</code> if the side wasn't reobfuscated
+	 */
+	public Map<String, byte[]> getReobfuscated(Side side) {
+		return reobfuscated.get(side);
+	}
+
 	private static Map<String, String> getPackageMappings(Map<String, String> classMappings) {
 		Map<String, String> packageMappings = new HashMap<>();
 		for (Entry<String, String> entry : classMappings.entrySet()) {
@@ -51,64 +101,176 @@ public class TaskReobfuscate extends TaskStaged {
 	protected Stage[] setStages() {
 		return new Stage[]{
 				stage(getLocalizedStage("gathermd5"),
-						() -> new TaskUpdateMD5(side, mcp, this).updateMD5(true)),
+						() -> new TaskUpdateMD5(side, mcp, this).updateMD5(true, classes)),
 				stage(getLocalizedStage("reobf"), 43,
 						this::reobfuscate)
 		};
 	}
 
 	private void reobfuscate() throws IOException {
-		final Path reobfBin = MCPPaths.get(mcp, BIN, side);
-
-		Side[] sides = side == Side.MERGED ? new Side[]{Side.CLIENT, Side.SERVER} : new Side[]{side};
-
+		Path originalMD5 = MCPPaths.get(mcp, MCPPaths.MD5, side);
+		Path modifiedMD5 = MCPPaths.get(mcp, MCPPaths.MD5_RO, side);
+		if (TaskUpdateMD5.isNormalized(originalMD5) != TaskUpdateMD5.isNormalized(modifiedMD5)) {
+			throw new IOException("MD5 hashes of original and modified classes were computed in different modes, run " + TaskMode.UPDATE_MD5.getFullName() + " again");
+		}
 		Map<String, String> originalHashes = gatherMD5Hashes(false);
 		Map<String, String> recompHashes = gatherMD5Hashes(true);
 
-		for (Side localSide : sides) {
-			final Path reobfDir = MCPPaths.get(mcp, REOBF_SIDE, localSide);
-			final Path reobfJar = MCPPaths.get(mcp, REOBF_JAR, localSide);
-			Files.deleteIfExists(reobfJar);
-			RDInjector injector = new RDInjector(reobfBin);
-			Mappings mappings = getMappings(injector.getStorage(), localSide);
-			if (mappings != null) {
-				injector.applyMappings(mappings);
+		if (side == Side.MERGED) {
+			// Sides are remapped with their own mappings and storage, reobfuscate the server on another thread
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			Future<Map<String, byte[]>> server = executor.submit(() -> reobfuscate(Side.SERVER, originalHashes, recompHashes));
+			executor.shutdown();
+			reobfuscated.put(Side.CLIENT, reobfuscate(Side.CLIENT, originalHashes, recompHashes));
+			try {
+				reobfuscated.put(Side.SERVER, server.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reobfuscating server", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+				throw new IOException("Failed to reobfuscate server", cause);
 			}
-			injector.transform();
-			new ClassStorageWriter(injector.getStorage(), ClassWriter.COMPUTE_MAXS).write(Files.newOutputStream(reobfJar));
+		} else {
+			reobfuscated.put(side, reobfuscate(side, originalHashes, recompHashes));
+		}
+	}
 
-			Map<String, String> reversedNames = new HashMap<>();
-			if (mappings != null) {
-				for (Entry<String, String> entry : mappings.classes.entrySet()) {
-					reversedNames.put(entry.getValue(), entry.getKey());
-				}
+	/**
+	 * @return entry name -> bytes of modified classes
+	 */
+	private Map<String, byte[]> reobfuscate(Side localSide, Map<String, String> originalHashes, Map<String, String> recompHashes) throws IOException {
+		final Path reobfDir = MCPPaths.get(mcp, REOBF_SIDE, localSide);
+		final Path reobfJar = MCPPaths.get(mcp, REOBF_JAR, localSide);
+		Files.deleteIfExists(reobfJar);
+		Pattern regexPattern = Pattern.compile(mcp.getOptions().getStringParameter(TaskParameter.EXCLUDED_CLASSES));
+		Map<String, byte[]> classMap = classes != null ? classes.getClasses() : readBin();
+		Set<String> changed = new HashSet<>();
+		for (String name : classMap.keySet()) {
+			if (isModified(name, originalHashes, recompHashes, regexPattern)) {
+				changed.add(name);
 			}
-			FileUtil.cleanDirectory(reobfDir);
-			Pattern regexPattern = Pattern.compile(mcp.getOptions().getStringParameter(TaskParameter.EXCLUDED_CLASSES));
-			FileUtil.extract(reobfJar, reobfDir, entry -> {
-				if (entry.isDirectory()) {
-					return false;
-				}
-				String obfClassName = entry.getName().replace(".class", "");
-				// Force inner classes to compare outer class hash
-				String className = obfClassName;
-				int index = className.indexOf('$');
-				if (index != -1) {
-					className = className.substring(0, index);
-				}
-				String deobfName = reversedNames.get(className);
-				if (deobfName == null) {
-					deobfName = className;
+		}
+		RDInjector injector = new RDInjector();
+		injector.setStorage(new ClassStorage(readClasses(classMap, getRemapClosure(classMap, changed))));
+		Mappings mappings = getMappings(injector.getStorage(), localSide);
+		if (mappings != null) {
+			injector.applyMappings(mappings);
+		}
+		injector.transform();
+
+		Map<String, String> reversedNames = new HashMap<>();
+		if (mappings != null) {
+			for (Entry<String, String> entry : mappings.classes.entrySet()) {
+				reversedNames.put(entry.getValue(), entry.getKey());
+			}
+		}
+		List<ClassNode> modifiedNodes = new ArrayList<>();
+		for (ClassNode node : injector.getStorage()) {
+			String obfClassName = node.name;
+			// Force inner classes to compare outer class hash
+			String className = obfClassName;
+			int index = className.indexOf('$');
+			if (index != -1) {
+				className = className.substring(0, index);
+			}
+			String deobfName = reversedNames.get(className);
+			if (deobfName == null) {
+				deobfName = className;
+			}
+			if (isModified(deobfName, originalHashes, recompHashes, regexPattern)) {
+				modifiedNodes.add(node);
+			}
+		}
+		// Remapping is done, classes can be serialized independently
+		Map<String, byte[]> modified = new TreeMap<>(modifiedNodes.parallelStream().collect(Collectors.toMap(node -> node.name + ".class", node -> {
+			ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			node.accept(writer);
+			return writer.toByteArray();
+		})));
+
+		if (writeOutput) {
+			try (ZipWriter zipOut = new ZipWriter(reobfJar, mcp.getOptions().getIntParameter(TaskParameter.COMPRESSION_LEVEL))) {
+				zipOut.writeAll(new ArrayList<>(modified.keySet()), modified::get, Runtime.getRuntime().availableProcessors());
+			}
+			FileUtil.cleanDirectoryInBackground(reobfDir);
+			FileUtil.createDirectories(reobfDir);
+			for (Entry<String, byte[]> entry : modified.entrySet()) {
+				Path file = reobfDir.resolve(entry.getKey());
+				FileUtil.createDirectories(file.getParent());
+				Files.write(file, entry.getValue());
+			}
+		} else {
+			FileUtil.deleteDirectoryInBackground(reobfDir);
+		}
+		return modified;
+	}
+
+	/**
+	 * Compares hashes of the outer class, so inner classes are shipped together with their outer class
+	 *
+	 * @param name deobfuscated class name
+	 */
+	private static boolean isModified(String name, Map<String, String> originalHashes, Map<String, String> recompHashes, Pattern excluded) {
+		int index = name.indexOf('$');
+		String className = index == -1 ? name : name.substring(0, index);
+		String hash = originalHashes.get(className);
+		String hashModified = recompHashes.get(className);
+		return (hash == null) || !hash.equals(hashModified) && !excluded.matcher(className).matches();
+	}
+
+	/**
+	 * Modified classes need every class they reference and all supertypes of those in the storage,
+	 * so that references to inherited members are remapped the same way as with every class present
+	 *
+	 * @return names of classes to remap
+	 */
+	private static Set<String> getRemapClosure(Map<String, byte[]> classMap, Set<String> changed) {
+		Set<String> closure = new HashSet<>(changed);
+		for (String name : changed) {
+			new ClassReader(classMap.get(name)).accept(new ClassRemapper(null, new Remapper() {
+				@Override
+				public String map(String internalName) {
+					if (classMap.containsKey(internalName)) {
+						closure.add(internalName);
+					}
+					return internalName;
 				}
-				String hash = originalHashes.get(deobfName);
-				String hashModified = recompHashes.get(deobfName);
-				boolean extract = (hash == null) || !hash.equals(hashModified) && !regexPattern.matcher(deobfName).matches();
-				if (extract) {
-					System.out.println(reversedNames.get(obfClassName) + " : " + obfClassName);
+			}), ClassReader.SKIP_FRAMES);
+		}
+		Deque<String> queue = new ArrayDeque<>(closure);
+		while (!queue.isEmpty()) {
+			ClassReader reader = new ClassReader(classMap.get(queue.poll()));
+			List<String> supers = new ArrayList<>(Arrays.asList(reader.getInterfaces()));
+			supers.add(reader.getSuperName());
+			for (String superName : supers) {
+				if (superName != null && classMap.containsKey(superName) && closure.add(superName)) {
+					queue.add(superName);
 				}
-				return extract;
-			});
+			}
 		}
+		return closure;
+	}
+
+	private Map<String, byte[]> readBin() throws IOException {
+		final Path binPath = MCPPaths.get(mcp, BIN, side);
+		Map<String, byte[]> classMap = new TreeMap<>();
+		for (Path file : FileUtil.walkDirectory(binPath, p -> p.getFileName().toString().endsWith(".class"))) {
+			String name = binPath.relativize(file).toString().replace('\\', '/');
+			classMap.put(name.substring(0, name.length() - 6), Files.readAllBytes(file));
+		}
+		return classMap;
+	}
+
+	private static List<ClassNode> readClasses(Map<String, byte[]> classMap, Set<String> names) {
+		return classMap.entrySet().parallelStream().filter(entry -> names.contains(entry.getKey())).map(entry -> {
+			ClassNode node = new ClassNode();
+			new ClassReader(entry.getValue()).accept(node, 0);
+			return node;
+		}).collect(Collectors.toList());
 	}
 
 	private Mappings getMappings(ClassStorage storage, Side side) throws IOException {
@@ -124,8 +286,8 @@ public class TaskReobfuscate extends TaskStaged {
 	}
 
 	private void modifyClassMappings(Mappings mappings, List<String> classNames, boolean obf) {
-		Map<String, Integer> obfIndexes = new HashMap<>();
 		Map<String, String> packageMappings = getPackageMappings(mappings.classes);
+		ObfNameAllocator allocator = new ObfNameAllocator(mappings.classes.values());
 		for (String className : classNames) {
 			String reobfName = mappings.classes.get(className);
 			if (reobfName == null /*&& !hashes.containsKey(className)*/) {
@@ -133,30 +295,49 @@ public class TaskReobfuscate extends TaskStaged {
 				String packageName = i1 == -1 ? "" : className.substring(0, i1 + 1);
 				String obfPackage = packageMappings.get(packageName);
 				String clsName = i1 == -1 ? className : className.substring(i1 + 1);
+				String targetPackage = obfPackage == null ? packageName : obfPackage;
 				if (obf) {
-					int obfIndex = obfIndexes.getOrDefault(obfPackage, 0);
-					String obfName = MappingUtil.getObfuscatedName(obfIndex);
-					List<String> obfNames = new ArrayList<>();
-					for (Entry<String, String> entry : mappings.classes.entrySet()) {
-						obfNames.add(entry.getValue());
-					}
-					while (obfNames.contains(obfPackage + obfName)) {
-						obfIndex++;
-						obfName = MappingUtil.getObfuscatedName(obfIndex);
-					}
-					if (obfIndex > obfIndexes.getOrDefault(obfPackage, 0)) {
-						obfIndexes.put(obfPackage, obfIndex);
-					}
-					clsName = obfName;
-				}
-				if (obf || obfPackage != null) {
-					String className2 = (obfPackage == null ? packageName : obfPackage) + clsName;
+					mappings.classes.put(className, allocator.allocate(targetPackage));
+				} else if (obfPackage != null) {
+					String className2 = targetPackage + clsName;
+					allocator.reserve(className2);
 					mappings.classes.put(className, className2);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Hands out unused obfuscated class names, walking {@link MappingUtil#getObfuscatedName(int)} once per package
+	 */
+	private static final class ObfNameAllocator {
+		private final Set<String> taken;
+		/**
+		 * Package -> index of the next candidate name
+		 */
+		private final Map<String, Integer> cursors = new HashMap<>();
+
+		ObfNameAllocator(Collection<String> taken) {
+			this.taken = new HashSet<>(taken);
+		}
+
+		void reserve(String name) {
+			taken.add(name);
+		}
+
+		String allocate(String packageName) {
+			int index = cursors.getOrDefault(packageName, 0);
+			String name = packageName + MappingUtil.getObfuscatedName(index);
+			while (taken.contains(name)) {
+				index++;
+				name = packageName + MappingUtil.getObfuscatedName(index);
+			}
+			cursors.put(packageName, index + 1);
+			taken.add(name);
+			return name;
+		}
+	}
+
 	@Override
 	public void setProgress(int progress) {
 		if (step == 0) {
@@ -173,6 +354,9 @@ public class TaskReobfuscate extends TaskStaged {
 
 		try (BufferedReader reader = Files.newBufferedReader(md5)) {
 			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.startsWith(TaskUpdateMD5.MODE_HEADER)) {
+					continue;
+				}
 				String[] tokens = line.split(" ");
 				hashes.put(tokens[0], tokens[1]);
 			}
@@ -10,8 +10,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
@@ -19,6 +17,7 @@ import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.Util;
 import org.mcphackers.mcp.tools.versions.json.Version;
 import org.mcphackers.mcp.tools.versions.json.Version.Arguments;
+import org.mcphackers.mcp.tools.zip.ZipArchive;
 
 public class TaskRun extends TaskStaged {
 
@@ -77,14 +76,10 @@ public class TaskRun extends TaskStaged {
 		}
 		if (side == Side.SERVER) {
 			Path jarPath = MCPPaths.get(mcp, JAR_ORIGINAL, Side.SERVER);
-			try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(jarPath))) {
-				ZipEntry zipEntry;
-				while ((zipEntry = zipIn.getNextEntry()) != null) {
-					if (zipEntry.getName().endsWith(".class")) {
-						String className = zipEntry.getName().substring(0, zipEntry.getName().length() - 6).replace('\\', '.').replace('/', '.');
-						if (SERVER_MAIN.contains(className)) {
-							return className;
-						}
+			try (ZipArchive jar = new ZipArchive(jarPath)) {
+				for (String className : SERVER_MAIN) {
+					if (jar.getEntry(className.replace('.', '/') + ".class") != null) {
+						return className;
 					}
 				}
 			}
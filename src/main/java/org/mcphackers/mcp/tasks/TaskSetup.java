@@ -23,6 +23,7 @@ import org.mcphackers.mcp.tasks.mode.TaskMode;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
 import org.mcphackers.mcp.tools.FileUtil;
 import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.compiler.CompilerService;
 import org.mcphackers.mcp.tools.versions.DownloadData;
 import org.mcphackers.mcp.tools.versions.VersionParser;
 import org.mcphackers.mcp.tools.versions.VersionParser.VersionData;
@@ -76,7 +77,14 @@ public class TaskSetup extends TaskStaged {
 						setProgress(getLocalizedStage("download", chosenVersionData.resources), 2);
 						try {
 							URL url = new URL(chosenVersionData.resources);
-							FileUtil.extract(url.openStream(), MCPPaths.get(mcp, CONF));
+							// Central directory is at the end of the archive, so it can't be extracted while downloading
+							Path zip = MCPPaths.get(mcp, "resources.zip.tmp");
+							try {
+								FileUtil.downloadFile(url, zip);
+								FileUtil.extract(zip, MCPPaths.get(mcp, CONF));
+							} finally {
+								Files.deleteIfExists(zip);
+							}
 						} catch (MalformedURLException e) {
 							Path p = Paths.get(chosenVersionData.resources);
 							if (Files.exists(p)) {
@@ -91,6 +99,11 @@ public class TaskSetup extends TaskStaged {
 						int percent = (int) ((double) libsSize / totalSize * 97D);
 						setProgress(getLocalizedStage("download", dl.name()), 3 + percent);
 					});
+					// Libraries may have been replaced under file managers which still have them open
+					CompilerService compiler = CompilerService.getInstance();
+					if (compiler != null) {
+						compiler.invalidate();
+					}
 					Path natives = MCPPaths.get(mcp, NATIVES);
 					for (Path nativeArchive : DownloadData.getNatives(MCPPaths.get(mcp, LIB), versionJson)) {
 						FileUtil.extract(nativeArchive, natives);
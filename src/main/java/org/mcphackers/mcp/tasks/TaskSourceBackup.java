@@ -9,13 +9,17 @@ import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
+import org.mcphackers.mcp.tasks.mode.TaskParameter;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
 
 public class TaskSourceBackup extends TaskStaged {
 
@@ -44,31 +48,39 @@ public class TaskSourceBackup extends TaskStaged {
 		}
 
 		Path srcPath = MCPPaths.get(mcp, SOURCE, side);
-		try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(backupPath))) {
-			List<String> srcFiles = new ArrayList<>();
-			try (Stream<Path> paths = Files.walk(srcPath)) {
-				paths.forEach(file -> {
-					if (file.getFileName().toString().endsWith(".java")) {
-						srcFiles.add(file.toString());
-					}
-				});
-			}
-			long nFiles = srcFiles.size();
-
-			int i = 0;
-			for (String path : srcFiles) {
-				if (path.endsWith(".java")) {
-					try {
-						zip.putNextEntry(new ZipEntry(path));
-						zip.write(Files.readAllBytes(Paths.get(path)));
-						zip.closeEntry();
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
+		List<String> srcFiles = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(srcPath)) {
+			paths.forEach(file -> {
+				if (file.getFileName().toString().endsWith(".java")) {
+					srcFiles.add(file.toString());
+				}
+			});
+		}
+		Collections.sort(srcFiles);
+		long nFiles = srcFiles.size();
+		AtomicInteger done = new AtomicInteger();
+		Queue<String> skipped = new ConcurrentLinkedQueue<>();
+		try (ZipWriter zip = new ZipWriter(backupPath, mcp.getOptions().getIntParameter(TaskParameter.COMPRESSION_LEVEL))) {
+			zip.writeAll(srcFiles, path -> {
+				reportProgress(path, (int) ((done.getAndIncrement() / (float) nFiles) * 100));
+				try {
+					return Files.readAllBytes(Paths.get(path));
+				} catch (IOException e) {
+					// An unreadable file shouldn't cost the backup of everything else
+					skipped.add(path + ": " + e);
+					return null;
 				}
-				setProgress(MCP.TRANSLATOR.translateKey("task.stage.backupsrc") + " " + path, (int) ((i / (float) nFiles) * 100));
-				i++;
-			}
+			}, Runtime.getRuntime().availableProcessors());
 		}
+		for (String message : skipped) {
+			addMessage("Skipped " + message, Task.WARNING);
+		}
+	}
+
+	/**
+	 * Files are read on multiple threads, progress is reported one at a time
+	 */
+	private synchronized void reportProgress(String path, int progress) {
+		setProgress(MCP.TRANSLATOR.translateKey("task.stage.backupsrc") + " " + path, progress);
 	}
 }
@@ -1,7 +1,10 @@
 package org.mcphackers.mcp.tasks;
 
+import java.io.IOException;
+
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.plugin.MCPPlugin.TaskEvent;
+import org.mcphackers.mcp.tools.FileUtil;
 
 public abstract class TaskStaged extends Task {
 
@@ -36,6 +39,10 @@ public abstract class TaskStaged extends Task {
 			stages[step].doTask();
 			step();
 		}
+		// Directories deleted in background by this or earlier tasks
+		for (IOException e : FileUtil.takeBackgroundDeleteErrors()) {
+			addMessage("Failed to delete: " + e, Task.WARNING);
+		}
 	}
 
 	/**
@@ -2,18 +2,25 @@ package org.mcphackers.mcp.tasks;
 
 import static org.mcphackers.mcp.MCPPaths.*;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.stream.Stream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.MCPPaths;
+import org.mcphackers.mcp.tasks.mode.TaskParameter;
+import org.mcphackers.mcp.tools.ClassUtils;
+import org.mcphackers.mcp.tools.FileUtil;
 import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.compiler.ClassOutput;
 
 public class TaskUpdateMD5 extends TaskStaged {
 	/*
@@ -21,7 +28,14 @@ public class TaskUpdateMD5 extends TaskStaged {
 	 */
 	public static final int STAGE_RECOMPILE = 0;
 	public static final int STAGE_MD5 = 1;
-	private int progress = 0;
+	/**
+	 * First line of an MD5 file with normalized hashes, followed by the mode classes were hashed in.
+	 * Files with raw hashes have no header and keep the format older versions and tools read
+	 */
+	public static final String MODE_HEADER = "# mode: ";
+	public static final String MODE_NORMALIZED = "normalized";
+	public static final String MODE_RAW = "raw";
+	private ClassOutput classes;
 
 	public TaskUpdateMD5(Side side, MCP instance) {
 		super(side, instance);
@@ -35,9 +49,18 @@ public class TaskUpdateMD5 extends TaskStaged {
 	protected Stage[] setStages() {
 		return new Stage[]{
 				stage(getLocalizedStage("recompile"),
-						() -> new TaskRecompile(side, mcp, this).doTask()),
+						() -> {
+							TaskRecompile recompile = new TaskRecompile(side, mcp, this).deferFlush();
+							recompile.doTask();
+							classes = recompile.getOutput();
+						}),
 				stage(getLocalizedStage("updatemd5"), 50,
-						() -> updateMD5(false))
+						() -> {
+							updateMD5(false, classes);
+							if (classes != null) {
+								classes.awaitFlush();
+							}
+						})
 		};
 	}
 
@@ -52,31 +75,124 @@ public class TaskUpdateMD5 extends TaskStaged {
 	}
 
 	public void updateMD5(boolean reobf) throws IOException {
+		updateMD5(reobf, null);
+	}
+
+	/**
+	 * @param classes compiled classes or <code>null</code> to hash classes in bin
+	 */
+	public void updateMD5(boolean reobf, ClassOutput classes) throws IOException {
 		final Path binPath = MCPPaths.get(mcp, BIN, side);
 		final Path md5 = MCPPaths.get(mcp, reobf ? MD5_RO : MD5, side);
 
 		if (!Files.exists(binPath)) {
 			throw new IOException(side.name + " classes not found!");
 		}
+		final boolean normalize;
+		final Path original = MCPPaths.get(mcp, MD5, side);
+		if (reobf && Files.exists(original)) {
+			// Modified classes have to be hashed the same way as the originals to be comparable
+			normalize = isNormalized(original);
+		} else {
+			normalize = mcp.getOptions().getBooleanParameter(TaskParameter.NORMALIZED_MD5);
+		}
+		Map<String, String> hashes = new TreeMap<>();
+		List<Path> files;
+		if (classes != null) {
+			Map<String, byte[]> classMap = classes.getClasses();
+			if (normalize) {
+				hashes.putAll(hashClasses(classMap));
+			} else {
+				// Classes are hashed as they're compiled, only resources have to be read
+				for (String name : classMap.keySet()) {
+					hashes.put(name, classes.getMD5(name));
+				}
+			}
+			files = FileUtil.walkDirectory(binPath, p -> !Files.isDirectory(p) && !p.getFileName().toString().endsWith(".class"));
+		} else {
+			files = FileUtil.walkDirectory(binPath, p -> !Files.isDirectory(p));
+		}
+		hashes.putAll(hashFiles(binPath, files, hashes.size(), normalize));
+
+		// Sorted for deterministic output
 		try (BufferedWriter writer = Files.newBufferedWriter(md5)) {
-			progress = 0;
-			int total;
-			try (Stream<Path> pathStream = Files.walk(binPath)) {
-				total = (int) pathStream.parallel()
-						.filter(p -> !p.toFile().isDirectory())
-						.count();
+			if (normalize) {
+				writer.append(MODE_HEADER).append(MODE_NORMALIZED).append("\n");
+			}
+			for (Map.Entry<String, String> entry : hashes.entrySet()) {
+				writer.append(entry.getKey()).append(" ").append(entry.getValue()).append("\n");
 			}
-			Files.walkFileTree(binPath, new SimpleFileVisitor<Path>() {
-				@Override
-				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-					String md5_hash = Util.getMD5(file);
-					String fileName = binPath.relativize(file).toString().replace("\\", "/").replace(".class", "");
-					writer.append(fileName).append(" ").append(md5_hash).append("\n");
-					progress++;
-					setProgress(50 + (int) ((double) progress / (double) total * 50));
-					return FileVisitResult.CONTINUE;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if classes in the MD5 file were hashed with {@link ClassUtils#getNormalizedMD5(byte[])}.
+	 * Files without a mode header contain raw hashes
+	 */
+	public static boolean isNormalized(Path md5) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(md5)) {
+			String line = reader.readLine();
+			if (line == null || !line.startsWith(MODE_HEADER)) {
+				return false;
+			}
+			String mode = line.substring(MODE_HEADER.length());
+			if (mode.equals(MODE_NORMALIZED)) {
+				return true;
+			}
+			if (mode.equals(MODE_RAW)) {
+				return false;
+			}
+			throw new IOException("Unknown MD5 mode \"" + mode + "\" in " + md5);
+		}
+	}
+
+	/**
+	 * Hashes files on multiple threads
+	 *
+	 * @param done      number of entries already hashed, used for progress
+	 * @param normalize hash classes with {@link ClassUtils#getNormalizedMD5(byte[])}
+	 * @return file name without .class extension -> MD5
+	 */
+	private Map<String, String> hashFiles(Path binPath, List<Path> files, int done, boolean normalize) throws IOException {
+		final int total = files.size() + done;
+		final AtomicInteger progress = new AtomicInteger(done);
+		Map<String, String> hashes = new ConcurrentHashMap<>();
+		try {
+			files.parallelStream().forEach(file -> {
+				String fileName = binPath.relativize(file).toString().replace("\\", "/").replace(".class", "");
+				try {
+					if (normalize && file.getFileName().toString().endsWith(".class")) {
+						hashes.put(fileName, ClassUtils.getNormalizedMD5(Files.readAllBytes(file)));
+					} else {
+						hashes.put(fileName, Util.getMD5(file));
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				setProgress(50 + (int) ((double) progress.incrementAndGet() / (double) total * 50));
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		return hashes;
+	}
+
+	/**
+	 * Hashes normalized classes on multiple threads
+	 */
+	private Map<String, String> hashClasses(Map<String, byte[]> classMap) throws IOException {
+		Map<String, String> hashes = new ConcurrentHashMap<>();
+		try {
+			classMap.entrySet().parallelStream().forEach(entry -> {
+				try {
+					hashes.put(entry.getKey(), ClassUtils.getNormalizedMD5(entry.getValue()));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
 			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
+		return hashes;
 	}
 }
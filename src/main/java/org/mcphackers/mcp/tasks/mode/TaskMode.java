@@ -50,9 +50,15 @@ public class TaskMode {
 					TaskParameter.SOURCE_VERSION,
 					TaskParameter.TARGET_VERSION,
 					TaskParameter.JAVA_HOME,
+					TaskParameter.NORMALIZED_MD5,
 					TaskParameter.IGNORED_PACKAGES,
 					TaskParameter.FERNFLOWER_OPTIONS,
 					TaskParameter.PATCHES,
+					TaskParameter.THREADS,
+					TaskParameter.METHOD_TIMEOUT,
+					TaskParameter.CLASS_TIMEOUT,
+					TaskParameter.BUILD_CACHE,
+					TaskParameter.COMPRESSION_LEVEL,
 					TaskParameter.SIDE
 			})
 			.build();
@@ -64,6 +70,7 @@ public class TaskMode {
 					TaskParameter.SOURCE_VERSION,
 					TaskParameter.TARGET_VERSION,
 					TaskParameter.JAVA_HOME,
+					TaskParameter.INCREMENTAL,
 					TaskParameter.SIDE
 			})
 			.build();
@@ -75,6 +82,7 @@ public class TaskMode {
 					TaskParameter.SOURCE_VERSION,
 					TaskParameter.TARGET_VERSION,
 					TaskParameter.JAVA_HOME,
+					TaskParameter.NORMALIZED_MD5,
 					TaskParameter.SIDE,
 					TaskParameter.EXCLUDED_CLASSES
 			})
@@ -87,6 +95,8 @@ public class TaskMode {
 					TaskParameter.SOURCE_VERSION,
 					TaskParameter.TARGET_VERSION,
 					TaskParameter.JAVA_HOME,
+					TaskParameter.INCREMENTAL,
+					TaskParameter.NORMALIZED_MD5,
 					TaskParameter.SIDE
 			})
 			.build();
@@ -121,7 +131,11 @@ public class TaskMode {
 					TaskParameter.SOURCE_VERSION,
 					TaskParameter.TARGET_VERSION,
 					TaskParameter.JAVA_HOME,
+					TaskParameter.INCREMENTAL,
+					TaskParameter.NORMALIZED_MD5,
 					TaskParameter.FULL_BUILD,
+					TaskParameter.OUTPUT_REOBF,
+					TaskParameter.COMPRESSION_LEVEL,
 					TaskParameter.SIDE
 			})
 			.build();
@@ -33,7 +33,15 @@ public enum TaskParameter {
 	DECOMPILE_RESOURCES("resources", Boolean.class, false),
 	GUESS_GENERICS("generics", Boolean.class, false),
 	STRIP_GENERICS("stripgenerics", Boolean.class, false),
-	OUTPUT_SRC("outputsrc", Boolean.class, true);
+	OUTPUT_SRC("outputsrc", Boolean.class, true),
+	THREADS("threads", Integer.class, 1),
+	METHOD_TIMEOUT("methodtimeout", Integer.class, 0),
+	CLASS_TIMEOUT("classtimeout", Integer.class, 0),
+	INCREMENTAL("incremental", Boolean.class, false),
+	NORMALIZED_MD5("normalizedmd5", Boolean.class, false),
+	OUTPUT_REOBF("outputreobf", Boolean.class, false),
+	COMPRESSION_LEVEL("compression", Integer.class, -1),
+	BUILD_CACHE("cache", Boolean.class, false);
 
 	public static final TaskParameter[] VALUES = TaskParameter.values();
 
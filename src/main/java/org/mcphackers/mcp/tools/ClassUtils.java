@@ -1,16 +1,24 @@
 package org.mcphackers.mcp.tools;
 
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
+
 public abstract class ClassUtils {
 	@SuppressWarnings("unchecked")
 	public static <T> List<Class<T>> getClasses(Path p, Class<T> type) throws Exception {
@@ -52,6 +60,32 @@ public abstract class ClassUtils {
 		return false;
 	}
 
+	/**
+	 * Hashes a canonical form of a class, so that recompiling unchanged code gives the same hash.
+	 * Debug info and stack map frames are dropped, fields, methods and inner classes are sorted
+	 * and the constant pool is rebuilt in the order of the sorted members
+	 *
+	 * @return MD5 of the canonical class or of the raw bytes if they can't be parsed
+	 */
+	public static String getNormalizedMD5(byte[] bytes) throws IOException {
+		byte[] normalized;
+		try {
+			ClassNode node = new ClassNode();
+			new ClassReader(bytes).accept(node, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			node.sourceFile = null;
+			node.sourceDebug = null;
+			node.fields.sort(Comparator.comparing((FieldNode f) -> f.name).thenComparing(f -> f.desc));
+			node.methods.sort(Comparator.comparing((MethodNode m) -> m.name).thenComparing(m -> m.desc));
+			node.innerClasses.sort(Comparator.comparing(c -> c.name));
+			ClassWriter writer = new ClassWriter(0);
+			node.accept(writer);
+			normalized = writer.toByteArray();
+		} catch (RuntimeException e) {
+			normalized = bytes;
+		}
+		return Util.getMD5(normalized);
+	}
+
 	public static int getSourceFromClassVersion(int classVersion) {
 		if (classVersion >= 45) {
 			return classVersion - 44;
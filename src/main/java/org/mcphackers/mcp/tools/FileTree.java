@@ -0,0 +1,310 @@
+package org.mcphackers.mcp.tools;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Copies and deletes directory trees with a fork-join task per subdirectory.
+ * Failures don't stop the rest of the tree from being processed, they're thrown together once it's done
+ */
+final class FileTree {
+	private static final String TRASH = ".trash-";
+	private static final ForkJoinPool POOL = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors()));
+	/**
+	 * A daemon, so that it never keeps the JVM alive. Trash left over when the JVM exits is deleted on the next run
+	 */
+	private static final ExecutorService TRASH_DELETER = new ThreadPoolExecutor(0, 1, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+		Thread thread = new Thread(r, "Trash deleter");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private static final Set<Path> pendingTrash = ConcurrentHashMap.newKeySet();
+	/**
+	 * Failures of the trash deleter, until a task reports them
+	 */
+	private static final Queue<IOException> trashErrors = new ConcurrentLinkedQueue<>();
+
+	private FileTree() {
+	}
+
+	/**
+	 * Deletes a file or a directory with everything in it
+	 */
+	static void delete(Path path) throws IOException {
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			Files.delete(path);
+			return;
+		}
+		Errors errors = new Errors();
+		POOL.invoke(new DeleteTask(path, true, errors));
+		errors.rethrow();
+	}
+
+	/**
+	 * Deletes everything in a directory, keeping the directory itself
+	 */
+	static void clean(Path dir) throws IOException {
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		Errors errors = new Errors();
+		POOL.invoke(new DeleteTask(dir, false, errors));
+		errors.rethrow();
+	}
+
+	/**
+	 * Copies a directory tree, replacing existing files
+	 *
+	 * @param filter files to copy, directories are always walked
+	 * @param link   create hard links instead of copies where the file system supports them
+	 */
+	static void copy(Path source, Path target, Predicate<Path> filter, boolean link) throws IOException {
+		Errors errors = new Errors();
+		POOL.invoke(new CopyTask(source, target, filter, new AtomicBoolean(link), errors));
+		errors.rethrow();
+	}
+
+	/**
+	 * @return failures of background deletion since the last call
+	 */
+	static List<IOException> takeTrashErrors() {
+		List<IOException> list = new ArrayList<>();
+		IOException e;
+		while ((e = trashErrors.poll()) != null) {
+			list.add(e);
+		}
+		return list;
+	}
+
+	/**
+	 * Renames a directory next to itself and deletes it on a background thread.
+	 * Deletes it right away if it can't be renamed
+	 */
+	static void deleteInBackground(Path path) throws IOException {
+		if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		if (!moveToTrash(path)) {
+			delete(path);
+		}
+	}
+
+	/**
+	 * Replaces a directory with an empty one, deleting the old contents on a background thread.
+	 * Cleans it right away if it can't be renamed
+	 */
+	static void cleanInBackground(Path dir) throws IOException {
+		if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		if (moveToTrash(dir)) {
+			Files.createDirectories(dir);
+		} else {
+			clean(dir);
+		}
+	}
+
+	private static boolean moveToTrash(Path path) {
+		Path absolute = path.toAbsolutePath().normalize();
+		Path parent = absolute.getParent();
+		if (parent == null) {
+			return false;
+		}
+		String prefix = "." + absolute.getFileName() + TRASH;
+		Path trash = parent.resolve(prefix + Long.toHexString(System.nanoTime()));
+		try {
+			Files.move(absolute, trash, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+		scheduleDelete(trash);
+		// Trash left behind by a previous run which exited before deleting it
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(parent, p -> p.getFileName().toString().startsWith(prefix))) {
+			for (Path stale : stream) {
+				scheduleDelete(stale);
+			}
+		} catch (IOException ignored) {
+		}
+		return true;
+	}
+
+	private static void scheduleDelete(Path trash) {
+		if (!pendingTrash.add(trash)) {
+			return;
+		}
+		TRASH_DELETER.execute(() -> {
+			try {
+				delete(trash);
+			} catch (NoSuchFileException ignored) {
+			} catch (IOException e) {
+				trashErrors.add(e);
+			} finally {
+				pendingTrash.remove(trash);
+			}
+		});
+	}
+
+	/**
+	 * @return <code>true</code> if the whole tree was deleted
+	 */
+	private static final class DeleteTask extends RecursiveTask<Boolean> {
+		private final Path dir;
+		private final boolean deleteSelf;
+		private final Errors errors;
+
+		DeleteTask(Path dir, boolean deleteSelf, Errors errors) {
+			this.dir = dir;
+			this.deleteSelf = deleteSelf;
+			this.errors = errors;
+		}
+
+		@Override
+		protected Boolean compute() {
+			boolean success = true;
+			List<DeleteTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path entry : stream) {
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						DeleteTask task = new DeleteTask(entry, true, errors);
+						task.fork();
+						subtasks.add(task);
+					} else {
+						success &= errors.run(() -> Files.delete(entry));
+					}
+				}
+			} catch (NoSuchFileException ignored) {
+			} catch (IOException e) {
+				errors.add(e);
+				success = false;
+			}
+			for (DeleteTask task : subtasks) {
+				success &= task.join();
+			}
+			if (deleteSelf && success) {
+				success = errors.run(() -> Files.delete(dir));
+			}
+			return success;
+		}
+	}
+
+	private static final class CopyTask extends RecursiveTask<Boolean> {
+		private final Path source;
+		private final Path target;
+		private final Predicate<Path> filter;
+		/**
+		 * Cleared by the first file that couldn't be linked
+		 */
+		private final AtomicBoolean link;
+		private final Errors errors;
+
+		CopyTask(Path source, Path target, Predicate<Path> filter, AtomicBoolean link, Errors errors) {
+			this.source = source;
+			this.target = target;
+			this.filter = filter;
+			this.link = link;
+			this.errors = errors;
+		}
+
+		@Override
+		protected Boolean compute() {
+			if (!errors.run(() -> Files.createDirectories(target))) {
+				return false;
+			}
+			boolean success = true;
+			List<CopyTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+				for (Path entry : stream) {
+					Path out = target.resolve(entry.getFileName().toString());
+					if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+						CopyTask task = new CopyTask(entry, out, filter, link, errors);
+						task.fork();
+						subtasks.add(task);
+					} else if (filter.test(entry)) {
+						success &= errors.run(() -> copyFile(entry, out));
+					}
+				}
+			} catch (IOException e) {
+				errors.add(e);
+				success = false;
+			}
+			for (CopyTask task : subtasks) {
+				success &= task.join();
+			}
+			return success;
+		}
+
+		private void copyFile(Path file, Path out) throws IOException {
+			if (link.get()) {
+				try {
+					Files.deleteIfExists(out);
+					Files.createLink(out, file);
+					return;
+				} catch (UnsupportedOperationException | FileSystemException e) {
+					// Different file systems or no hard link support, copy this and every following file
+					link.set(false);
+				}
+			}
+			Files.copy(file, out, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static final class Errors {
+		private IOException exception;
+
+		/**
+		 * @return <code>true</code> if the action succeeded
+		 */
+		boolean run(IOAction action) {
+			try {
+				action.run();
+				return true;
+			} catch (NoSuchFileException e) {
+				// Already gone, something else deleted it
+				return true;
+			} catch (IOException e) {
+				add(e);
+				return false;
+			}
+		}
+
+		synchronized void add(IOException e) {
+			if (exception == null) {
+				exception = e;
+			} else {
+				exception.addSuppressed(e);
+			}
+		}
+
+		synchronized void rethrow() throws IOException {
+			if (exception != null) {
+				throw exception;
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface IOAction {
+		void run() throws IOException;
+	}
+}
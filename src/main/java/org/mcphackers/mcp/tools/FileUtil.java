@@ -8,27 +8,29 @@ import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+
+import org.mcphackers.mcp.tools.zip.ZipArchive;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
 
 public abstract class FileUtil {
 
@@ -79,11 +81,11 @@ public abstract class FileUtil {
 	}
 
 	public static void extract(final Path zipFile, final Path destDir) throws IOException {
-		extract(zipFile, destDir, entry -> true);
+		extractMatching(zipFile, destDir, entry -> true);
 	}
 
 	public static void extractByExtension(final Path zipFile, final Path destDir, String extension) throws IOException {
-		extract(zipFile, destDir, entry -> entry.toString().endsWith(extension));
+		extractMatching(zipFile, destDir, entry -> entry.name.endsWith(extension));
 	}
 
 	public static void extract(final InputStream zipFile, final Path destDir) throws IOException {
@@ -105,27 +107,39 @@ public abstract class FileUtil {
 		}
 	}
 
-	public static void extract(final Path zipFile, final Path destDir, Function<ZipEntry, Boolean> match) throws IOException {
-		if (!Files.exists(destDir)) {
-			Files.createDirectories(destDir);
-		}
-		try (ZipInputStream zipInputStream = new ZipInputStream(Files.newInputStream(zipFile))) {
-			ZipEntry entry;
-			while ((entry = zipInputStream.getNextEntry()) != null) {
-				Path toPath = destDir.resolve(entry.getName());
-				Files.deleteIfExists(toPath);
-				if (match.apply(entry)) {
-					if (!entry.isDirectory()) {
-						createDirectories(toPath.getParent());
-						Files.copy(zipInputStream, toPath);
-					} else {
-						createDirectories(toPath);
+	/**
+	 * Extracts entries accepted by <code>match</code> in parallel.
+	 * Existing files of rejected entries are deleted
+	 */
+	public static void extractMatching(final Path zipFile, final Path destDir, Predicate<ZipArchive.Entry> match) throws IOException {
+		try (ZipArchive archive = new ZipArchive(zipFile)) {
+			Path root = destDir.toAbsolutePath().normalize();
+			for (ZipArchive.Entry entry : archive.getEntries()) {
+				if (!entry.isDirectory() && !match.test(entry)) {
+					Path target = root.resolve(entry.name).normalize();
+					if (target.startsWith(root)) {
+						Files.deleteIfExists(target);
 					}
 				}
 			}
+			archive.extract(destDir, match, Runtime.getRuntime().availableProcessors());
 		}
 	}
 
+	/**
+	 * @deprecated use {@link #extractMatching(Path, Path, Predicate)}, <code>match</code> receives entries with name, sizes and CRC only
+	 */
+	@Deprecated
+	public static void extract(final Path zipFile, final Path destDir, Function<ZipEntry, Boolean> match) throws IOException {
+		extractMatching(zipFile, destDir, entry -> {
+			ZipEntry zipEntry = new ZipEntry(entry.name);
+			zipEntry.setSize(entry.size);
+			zipEntry.setCompressedSize(entry.compressedSize);
+			zipEntry.setCrc(entry.crc & 0xFFFFFFFFL);
+			return match.apply(zipEntry);
+		});
+	}
+
 	public static void downloadFile(String url, Path output) throws IOException {
 		downloadFile(new URL(url), output);
 	}
@@ -144,25 +158,33 @@ public abstract class FileUtil {
 		}
 	}
 
+	/**
+	 * Deletes everything in a directory in parallel
+	 */
 	public static void cleanDirectory(Path path) throws IOException {
-		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
-			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
-				for (Path entry : entries) {
-					deleteDirectory(entry);
-				}
-			}
-		}
+		FileTree.clean(path);
 	}
 
+	/**
+	 * Deletes a directory tree in parallel
+	 */
 	public static void deleteDirectory(Path path) throws IOException {
-		if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
-			try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
-				for (Path entry : entries) {
-					deleteDirectory(entry);
-				}
-			}
-		}
-		Files.delete(path);
+		FileTree.delete(path);
+	}
+
+	/**
+	 * Empties a directory right away and deletes its old contents in the background.
+	 * Only use for directories nothing else is writing to
+	 */
+	public static void cleanDirectoryInBackground(Path path) throws IOException {
+		FileTree.cleanInBackground(path);
+	}
+
+	/**
+	 * Removes a directory right away and deletes its contents in the background
+	 */
+	public static void deleteDirectoryInBackground(Path path) throws IOException {
+		FileTree.deleteInBackground(path);
 	}
 
 	public static List<Path> walkDirectory(Path path) throws IOException {
@@ -183,38 +205,49 @@ public abstract class FileUtil {
 		}
 	}
 
+	/**
+	 * Copies a directory tree in parallel, replacing existing files
+	 */
 	public static void copyDirectory(Path sourceFolder, Path targetFolder) throws IOException {
-		if (!Files.exists(targetFolder)) {
-			Files.createDirectories(targetFolder);
-		}
-		try (Stream<Path> pathStream = Files.walk(sourceFolder)) {
-			pathStream.forEach(source -> {
-				Path destination = targetFolder.resolve(sourceFolder.relativize(source));
-				try {
-					if (!Files.isDirectory(destination)) {
-						Files.copy(source, destination);
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			});
-		}
+		FileTree.copy(sourceFolder, targetFolder, p -> true, false);
+	}
+
+	/**
+	 * Copies matching files of a directory tree in parallel, replacing existing files.
+	 * Empty directories are created for every directory of the source tree
+	 *
+	 * @param link hard link files instead of copying them where the file system supports it, copies otherwise.
+	 *             Only for targets which are never modified in place, as a link shares contents with its source
+	 */
+	public static void copyDirectory(Path sourceFolder, Path targetFolder, Predicate<Path> filter, boolean link) throws IOException {
+		FileTree.copy(sourceFolder, targetFolder, filter, link);
+	}
+
+	/**
+	 * @return failures of background deletions since the last call, see {@link #deleteDirectoryInBackground(Path)}
+	 */
+	public static List<IOException> takeBackgroundDeleteErrors() {
+		return FileTree.takeTrashErrors();
 	}
 
 	public static void compress(Path sourceDir, Path target) throws IOException {
-		final ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(target));
-		Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
-			@Override
-			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
-				Path targetFile = sourceDir.relativize(file);
-				outputStream.putNextEntry(new ZipEntry(targetFile.toString().replace("\\", "/")));
-				byte[] bytes = Files.readAllBytes(file);
-				outputStream.write(bytes, 0, bytes.length);
-				outputStream.closeEntry();
-				return FileVisitResult.CONTINUE;
-			}
-		});
-		outputStream.close();
+		compress(sourceDir, target, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Compresses files on all available processors. Entries are sorted by name
+	 *
+	 * @param level compression level, see {@link ZipWriter#ZipWriter(Path, int)}
+	 */
+	public static void compress(Path sourceDir, Path target, int level) throws IOException {
+		List<String> names = new ArrayList<>();
+		for (Path file : walkDirectory(sourceDir, p -> !Files.isDirectory(p))) {
+			names.add(sourceDir.relativize(file).toString().replace("\\", "/"));
+		}
+		Collections.sort(names);
+		try (ZipWriter writer = new ZipWriter(target, level)) {
+			writer.writeAll(names, name -> Files.readAllBytes(sourceDir.resolve(name)), Runtime.getRuntime().availableProcessors());
+		}
 	}
 
 	public static void copyResource(InputStream is, Path out) throws IOException {
@@ -234,6 +267,33 @@ public abstract class FileUtil {
 		collectJars(libPath, list, false);
 	}
 
+	/**
+	 * Deletes the least recently modified files of a directory tree until the rest fits into <code>maxSize</code>.
+	 * Caches update modification time of entries they read, so it's the time of last use
+	 *
+	 * @param maxSize size limit in bytes
+	 */
+	public static void pruneLeastRecentlyUsed(Path path, long maxSize) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		List<Path> files = walkDirectory(path, Files::isRegularFile);
+		Map<Path, FileTime> times = new HashMap<>();
+		long size = 0;
+		for (Path file : files) {
+			times.put(file, Files.getLastModifiedTime(file));
+			size += Files.size(file);
+		}
+		files.sort(Comparator.comparing(times::get));
+		for (Path file : files) {
+			if (size <= maxSize) {
+				break;
+			}
+			size -= Files.size(file);
+			Files.deleteIfExists(file);
+		}
+	}
+
 	public static void deleteEmptyFolders(Path path) throws IOException {
 		try (Stream<Path> pathStream = Files.walk(path)) {
 			pathStream.sorted(Comparator.reverseOrder())
@@ -244,6 +304,7 @@ public abstract class FileUtil {
 	}
 
 	public static void deletePackages(Path sourceFolder, String[] excludedFolders) throws IOException {
+		List<IOException> errors = new ArrayList<>();
 		try (Stream<Path> pathStream = Files.walk(sourceFolder)) {
 			pathStream.filter(p -> !(Files.isDirectory(p) && p.toFile().list().length != 0)).forEach(source -> {
 				for (String excludedFolder : excludedFolders) {
@@ -251,7 +312,7 @@ public abstract class FileUtil {
 						try {
 							Files.delete(source);
 						} catch (IOException e) {
-							e.printStackTrace();
+							errors.add(e);
 						}
 						break;
 					}
@@ -259,6 +320,13 @@ public abstract class FileUtil {
 			});
 		}
 		deleteEmptyFolders(sourceFolder);
+		if (!errors.isEmpty()) {
+			IOException e = errors.get(0);
+			for (int i = 1; i < errors.size(); i++) {
+				e.addSuppressed(errors.get(i));
+			}
+			throw e;
+		}
 	}
 
 	public static List<Path> getPathsOfType(Path startDirectory, String... types) {
@@ -2,7 +2,6 @@ package org.mcphackers.mcp.tools;
 
 import java.awt.*;
 import java.awt.datatransfer.StringSelection;
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -16,12 +15,19 @@ import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Objects;
+import java.util.Properties;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 public abstract class Util {
 	public static final ExecutorService SINGLE_THREAD_EXECUTOR = Executors.newSingleThreadExecutor();
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	/**
+	 * Read buffer of {@link #getDigest(MessageDigest, Path)}, one per hashing thread
+	 */
+	private static final ThreadLocal<byte[]> DIGEST_BUFFER = ThreadLocal.withInitial(() -> new byte[65536]);
+	private static Properties libraryVersions;
 
 	public static int runCommand(String[] cmd, Path dir, boolean killOnShutdown) throws IOException {
 		ProcessBuilder procBuilder = new ProcessBuilder(cmd);
@@ -112,28 +118,36 @@ public abstract class Util {
 	public static String getMD5(Path file) throws IOException {
 		try {
 			MessageDigest md = MessageDigest.getInstance("MD5");
-			byte[] digest = getDigest(md, file);
+			return toHex(getDigest(md, file));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
 
-			StringBuilder sb = new StringBuilder();
-			for (byte bite : digest) {
-				sb.append(String.format("%02x", bite & 0xff));
-			}
-			return sb.toString();
+	public static String getMD5(byte[] bytes) throws IOException {
+		try {
+			return toHex(MessageDigest.getInstance("MD5").digest(bytes));
 		} catch (NoSuchAlgorithmException e) {
 			throw new IOException(e);
 		}
 	}
 
+	/**
+	 * @return lowercase hexadecimal representation of a digest
+	 */
+	public static String toHex(byte[] digest) {
+		char[] chars = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
 	public static String getSHA1(Path file) throws IOException {
 		try {
 			MessageDigest md = MessageDigest.getInstance("SHA-1");
-			byte[] digest = getDigest(md, file);
-
-			StringBuilder sb = new StringBuilder();
-			for (byte bite : digest) {
-				sb.append(Integer.toString((bite & 255) + 256, 16).substring(1).toLowerCase());
-			}
-			return sb.toString();
+			return toHex(getDigest(md, file));
 		} catch (NoSuchAlgorithmException e) {
 			throw new IOException(e);
 		}
@@ -141,11 +155,10 @@ public abstract class Util {
 
 	public static byte[] getDigest(MessageDigest md, Path file) {
 		try (InputStream fs = Files.newInputStream(file)) {
-			BufferedInputStream bs = new BufferedInputStream(fs);
-			byte[] buffer = new byte[1024];
+			byte[] buffer = DIGEST_BUFFER.get();
 			int bytesRead;
 
-			while ((bytesRead = bs.read(buffer, 0, buffer.length)) != -1) {
+			while ((bytesRead = fs.read(buffer, 0, buffer.length)) != -1) {
 				md.update(buffer, 0, bytesRead);
 			}
             return md.digest();
@@ -155,6 +168,24 @@ public abstract class Util {
 		return new byte[] {};
 	}
 
+	/**
+	 * @param name <code>fernflower</code> or <code>rdi</code>
+	 * @return version of a bundled library as declared in the build script or <code>"unknown"</code>
+	 */
+	public static synchronized String getLibraryVersion(String name) {
+		if (libraryVersions == null) {
+			libraryVersions = new Properties();
+			try (InputStream is = Util.class.getResourceAsStream("/versions.properties")) {
+				if (is != null) {
+					libraryVersions.load(is);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return libraryVersions.getProperty(name, "unknown");
+	}
+
 	public static String firstUpperCase(String s) {
 		if (s == null) {
 			return null;
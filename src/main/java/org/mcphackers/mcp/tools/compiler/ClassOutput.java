@@ -0,0 +1,105 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+
+/**
+ * Classes produced by the compiler, kept in memory together with their MD5 hashes.
+ * Every class is also written to the output directory in the background
+ */
+public class ClassOutput {
+	private final Path dir;
+	/**
+	 * Internal name -> class bytes
+	 */
+	private final Map<String, byte[]> classes = new ConcurrentHashMap<>();
+	private final Map<String, String> hashes = new ConcurrentHashMap<>();
+	private final ExecutorService writer;
+	private volatile IOException writeException;
+
+	public ClassOutput(Path dir) {
+		this.dir = dir;
+		this.writer = new ThreadPoolExecutor(0, 1, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "Class writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Stores a compiled class and schedules writing it to the output directory
+	 *
+	 * @param name  internal name
+	 * @param bytes class bytes
+	 * @param md5   hash of <code>bytes</code>
+	 */
+	public void put(String name, byte[] bytes, String md5) {
+		classes.put(name, bytes);
+		hashes.put(name, md5);
+		writer.execute(() -> {
+			try {
+				Path file = dir.resolve(name + ".class");
+				Files.createDirectories(file.getParent());
+				Files.write(file, bytes);
+			} catch (IOException e) {
+				writeException = e;
+			}
+		});
+	}
+
+	/**
+	 * Reads classes which exist in the output directory but weren't compiled into this output
+	 */
+	public void loadMissing() throws IOException {
+		for (Path file : FileUtil.walkDirectory(dir, p -> p.getFileName().toString().endsWith(".class"))) {
+			String name = dir.relativize(file).toString().replace('\\', '/');
+			name = name.substring(0, name.length() - 6);
+			if (!classes.containsKey(name)) {
+				byte[] bytes = Files.readAllBytes(file);
+				classes.put(name, bytes);
+				hashes.put(name, Util.getMD5(bytes));
+			}
+		}
+	}
+
+	/**
+	 * @return internal name -> class bytes, sorted by name
+	 */
+	public Map<String, byte[]> getClasses() {
+		return Collections.unmodifiableMap(new TreeMap<>(classes));
+	}
+
+	public String getMD5(String name) {
+		return hashes.get(name);
+	}
+
+	/**
+	 * Blocks until every class is written to the output directory
+	 */
+	public void awaitFlush() throws IOException {
+		writer.shutdown();
+		try {
+			while (!writer.awaitTermination(1L, TimeUnit.MINUTES)) {
+				// Keep waiting
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		if (writeException != null) {
+			throw writeException;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Long-lived access to the system Java compiler.
+ * File managers are kept open between compilations so that javac doesn't reopen and reindex every library jar.
+ * A file manager is replaced once size or modification time of any jar on its classpath changes
+ */
+public final class CompilerService {
+	private static CompilerService instance;
+
+	private final JavaCompiler compiler;
+	/**
+	 * Classpath -> file manager opened with it
+	 */
+	private final Map<String, Entry> fileManagers = new HashMap<>();
+
+	private CompilerService(JavaCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/**
+	 * @return shared instance or <code>null</code> if the runtime doesn't provide a compiler
+	 */
+	public static synchronized CompilerService getInstance() {
+		if (instance == null) {
+			JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+			if (compiler == null) {
+				return null;
+			}
+			instance = new CompilerService(compiler);
+		}
+		return instance;
+	}
+
+	/**
+	 * Compiles sources. Compilations with the same classpath run one at a time, others run concurrently
+	 *
+	 * @param src       source files
+	 * @param options   compiler options, including classpath
+	 * @param classpath every archive or directory referenced by options, used to pick the file manager
+	 * @param listener  receives diagnostics of this compilation
+	 * @param output    receives compiled classes or <code>null</code> to write them to the output directory directly
+	 * @return <code>true</code> if compilation succeeded
+	 */
+	public boolean compile(Iterable<File> src, Iterable<String> options, List<Path> classpath, DiagnosticListener<? super JavaFileObject> listener, ClassOutput output) throws IOException {
+		Entry entry = getEntry(classpath);
+		synchronized (entry) {
+			entry.listener.delegate = listener;
+			try {
+				// Drop cached contents of sources, archives stay open
+				entry.fileManager.flush();
+				Iterable<? extends JavaFileObject> sources = entry.fileManager.getJavaFileObjectsFromFiles(src);
+				JavaFileManager fileManager = output == null ? entry.fileManager : new MemoryFileManager(entry.fileManager, output);
+				return compiler.getTask(null, fileManager, listener, options, null, sources).call();
+			} finally {
+				entry.listener.delegate = null;
+			}
+		}
+	}
+
+	/**
+	 * Closes every cached file manager
+	 */
+	public synchronized void invalidate() throws IOException {
+		for (Entry entry : fileManagers.values()) {
+			synchronized (entry) {
+				entry.fileManager.close();
+			}
+		}
+		fileManagers.clear();
+	}
+
+	private synchronized Entry getEntry(List<Path> classpath) throws IOException {
+		StringBuilder key = new StringBuilder();
+		StringBuilder stamp = new StringBuilder();
+		for (Path path : classpath) {
+			key.append(path.toAbsolutePath()).append(File.pathSeparatorChar);
+			if (Files.isRegularFile(path)) {
+				stamp.append(Files.size(path)).append(':').append(Files.getLastModifiedTime(path).toMillis());
+			}
+			stamp.append(';');
+		}
+		Entry entry = fileManagers.get(key.toString());
+		if (entry != null && entry.stamp.equals(stamp.toString())) {
+			return entry;
+		}
+		if (entry != null) {
+			synchronized (entry) {
+				entry.fileManager.close();
+			}
+		}
+		ForwardingListener listener = new ForwardingListener();
+		entry = new Entry(stamp.toString(), compiler.getStandardFileManager(listener, null, StandardCharsets.UTF_8), listener);
+		fileManagers.put(key.toString(), entry);
+		return entry;
+	}
+
+	private static final class Entry {
+		final String stamp;
+		final StandardJavaFileManager fileManager;
+		final ForwardingListener listener;
+
+		Entry(String stamp, StandardJavaFileManager fileManager, ForwardingListener listener) {
+			this.stamp = stamp;
+			this.fileManager = fileManager;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * File manager diagnostics are reported to whoever is compiling at the moment
+	 */
+	private static final class ForwardingListener implements DiagnosticListener<JavaFileObject> {
+		volatile DiagnosticListener<? super JavaFileObject> delegate;
+
+		@Override
+		public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+			DiagnosticListener<? super JavaFileObject> listener = delegate;
+			if (listener != null) {
+				listener.report(diagnostic);
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+
+/**
+ * Source file hashes and class level dependencies of compiled classes, used to recompile only what changed.
+ * Dependencies are read from compiled classes, so every type referenced from the constant pool or descriptors is a dependency
+ */
+public class DependencyIndex {
+	private static final String HEADER = "# RetroMCP dependency index v2";
+
+	/**
+	 * Source path relative to the source directory -> hash of its contents
+	 */
+	private final Map<String, String> sources = new TreeMap<>();
+	/**
+	 * Internal class name -> info
+	 */
+	private final Map<String, ClassInfo> classes = new TreeMap<>();
+
+	/**
+	 * @param file    index file
+	 * @param options compiler options and classpath the index was created with
+	 * @return index or <code>null</code> if it doesn't exist, is unreadable or was created with different options
+	 */
+	public static DependencyIndex read(Path file, String options) {
+		if (!Files.exists(file)) {
+			return null;
+		}
+		DependencyIndex index = new DependencyIndex();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine()) || !options.equals(reader.readLine())) {
+				return null;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] split = line.split("\t", -1);
+				if (split[0].equals("S") && split.length == 3) {
+					index.sources.put(split[1], split[2]);
+				} else if (split[0].equals("C") && split.length == 6) {
+					index.classes.put(split[1], new ClassInfo(split[2], split[3], toSet(split[4]), toSet(split[5])));
+				} else {
+					return null;
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return index;
+	}
+
+	public void write(Path file, String options) throws IOException {
+		try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			writer.append(HEADER).append('\n');
+			writer.append(options).append('\n');
+			for (Map.Entry<String, String> entry : sources.entrySet()) {
+				writer.append("S\t").append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+			}
+			for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+				ClassInfo info = entry.getValue();
+				writer.append("C\t").append(entry.getKey())
+						.append('\t').append(info.source)
+						.append('\t').append(info.constants)
+						.append('\t').append(String.join(",", info.supers))
+						.append('\t').append(String.join(",", info.references))
+						.append('\n');
+			}
+		}
+	}
+
+	public Set<String> getSources() {
+		return Collections.unmodifiableSet(sources.keySet());
+	}
+
+	public String getSourceHash(String source) {
+		return sources.get(source);
+	}
+
+	public void putSource(String source, String hash) {
+		sources.put(source, hash);
+	}
+
+	public boolean hasClass(String name) {
+		return classes.containsKey(name);
+	}
+
+	/**
+	 * @return classes compiled from <code>source</code>
+	 */
+	public List<String> getClasses(String source) {
+		List<String> list = new ArrayList<>();
+		for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+			if (entry.getValue().source.equals(source)) {
+				list.add(entry.getKey());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return hash of compile time constants declared by the class, which get inlined into dependent classes
+	 */
+	public String getConstants(String name) {
+		ClassInfo info = classes.get(name);
+		return info == null ? null : info.constants;
+	}
+
+	/**
+	 * Forgets a source file and every class compiled from it
+	 */
+	public void removeSource(String source) {
+		sources.remove(source);
+		classes.values().removeIf(info -> info.source.equals(source));
+	}
+
+	/**
+	 * Records dependencies of a compiled class
+	 *
+	 * @return <code>false</code> if the class doesn't name its source file, in which case it can't be tracked
+	 */
+	public boolean addClass(byte[] bytes) {
+		ClassNode node = new ClassNode();
+		Set<String> references = new HashSet<>();
+		new ClassReader(bytes).accept(new ClassRemapper(node, new Remapper() {
+			@Override
+			public String map(String internalName) {
+				references.add(internalName);
+				return internalName;
+			}
+		}), ClassReader.SKIP_FRAMES);
+		if (node.sourceFile == null) {
+			return false;
+		}
+		int pkg = node.name.lastIndexOf('/');
+		String source = (pkg == -1 ? "" : node.name.substring(0, pkg + 1)) + node.sourceFile;
+		Set<String> supers = new HashSet<>();
+		if (node.superName != null) {
+			supers.add(node.superName);
+		}
+		supers.addAll(node.interfaces);
+		references.remove(node.name);
+		classes.put(node.name, new ClassInfo(source, getConstants(node), supers, references));
+		return true;
+	}
+
+	/**
+	 * @param changed sources which were modified or removed
+	 * @return changed sources, sources of subclasses of classes compiled from changed sources
+	 * and sources of classes referencing any of those classes or subclasses
+	 */
+	public Set<String> getAffectedSources(Collection<String> changed) {
+		Set<String> changedClasses = new HashSet<>();
+		Set<String> changedSources = new HashSet<>(changed);
+		for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+			if (changedSources.contains(entry.getValue().source)) {
+				changedClasses.add(entry.getKey());
+			}
+		}
+		Set<String> affected = new HashSet<>(changed);
+		// Subclasses compile against inherited members, which don't show up in their constant pool
+		Map<String, List<String>> subclasses = new HashMap<>();
+		for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+			for (String superName : entry.getValue().supers) {
+				subclasses.computeIfAbsent(superName, k -> new ArrayList<>()).add(entry.getKey());
+			}
+		}
+		Set<String> hierarchy = new HashSet<>(changedClasses);
+		Deque<String> queue = new ArrayDeque<>(changedClasses);
+		while (!queue.isEmpty()) {
+			for (String subclass : subclasses.getOrDefault(queue.poll(), Collections.emptyList())) {
+				if (hierarchy.add(subclass)) {
+					queue.add(subclass);
+				}
+			}
+		}
+		// Members inherited from a changed class are referenced through the subclass
+		for (Map.Entry<String, ClassInfo> entry : classes.entrySet()) {
+			ClassInfo info = entry.getValue();
+			if (hierarchy.contains(entry.getKey()) || !Collections.disjoint(info.references, hierarchy)) {
+				affected.add(info.source);
+			}
+		}
+		return affected;
+	}
+
+	/**
+	 * @return SHA-1 of names, descriptors and values of compile time constants
+	 */
+	private static String getConstants(ClassNode node) {
+		StringBuilder sb = new StringBuilder();
+		for (FieldNode field : node.fields) {
+			if (field.value != null && (field.access & (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) == (Opcodes.ACC_STATIC | Opcodes.ACC_FINAL)) {
+				sb.append(field.name).append(':').append(field.desc).append('=').append(field.value).append(';');
+			}
+		}
+		try {
+			return Util.toHex(MessageDigest.getInstance("SHA-1").digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static Set<String> toSet(String s) {
+		if (s.isEmpty()) {
+			return new HashSet<>();
+		}
+		return new HashSet<>(Arrays.asList(s.split(",")));
+	}
+
+	private static class ClassInfo {
+		final String source;
+		final String constants;
+		final Set<String> supers;
+		final Set<String> references;
+
+		ClassInfo(String source, String constants, Set<String> supers, Set<String> references) {
+			this.source = source;
+			this.constants = constants;
+			this.supers = supers;
+			this.references = references;
+		}
+	}
+}
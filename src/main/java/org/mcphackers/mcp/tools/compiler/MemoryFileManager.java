@@ -0,0 +1,77 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+import org.mcphackers.mcp.tools.Util;
+
+/**
+ * Redirects compiled classes to a {@link ClassOutput}, hashing them while they're written
+ */
+class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+	private final ClassOutput output;
+
+	MemoryFileManager(JavaFileManager fileManager, ClassOutput output) {
+		super(fileManager);
+		this.output = output;
+	}
+
+	@Override
+	public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+		if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) {
+			return super.getJavaFileForOutput(location, className, kind, sibling);
+		}
+		return new ClassFile(className.replace('.', '/'));
+	}
+
+	private class ClassFile extends SimpleJavaFileObject {
+		private final String name;
+
+		ClassFile(String name) {
+			super(URI.create("mem:///" + name + Kind.CLASS.extension), Kind.CLASS);
+			this.name = name;
+		}
+
+		@Override
+		public OutputStream openOutputStream() throws IOException {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IOException(e);
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			return new FilterOutputStream(new DigestOutputStream(bytes, md)) {
+				private boolean closed;
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					if (closed) {
+						return;
+					}
+					closed = true;
+					super.close();
+					output.put(name, bytes.toByteArray(), Util.toHex(md.digest()));
+				}
+			};
+		}
+	}
+}
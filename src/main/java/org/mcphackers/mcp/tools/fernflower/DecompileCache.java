@@ -0,0 +1,263 @@
+package org.mcphackers.mcp.tools.fernflower;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.mcphackers.mcp.MCP;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Content addressed storage of decompiled sources.
+ * A class is keyed by its bytecode, the signatures of every class it references and their supertypes,
+ * library contents, Fernflower options and versions of MCP and Fernflower,
+ * so a class only needs to be decompiled again if anything visible to the decompiler has changed
+ */
+public class DecompileCache {
+	/**
+	 * Size in bytes the cache is pruned to after decompiling, about a dozen versions of Minecraft
+	 */
+	public static final long MAX_SIZE = 256L * 1024 * 1024;
+
+	private final Path cacheDir;
+	private final String optionsKey;
+	private int hits;
+	private int misses;
+
+	public DecompileCache(Path cacheDir, Map<String, Object> options, List<Path> libraries) throws IOException {
+		this.cacheDir = cacheDir;
+		StringBuilder key = new StringBuilder();
+		key.append(MCP.VERSION).append(';').append(Util.getLibraryVersion("fernflower")).append(';');
+		key.append(new TreeMap<>(options));
+		for (Path lib : libraries) {
+			if (Files.exists(lib)) {
+				key.append(';').append(lib.getFileName()).append(':').append(Util.getSHA1(lib));
+			}
+		}
+		this.optionsKey = key.toString();
+	}
+
+	/**
+	 * @param classes class entry names mapped to bytecode
+	 * @return class names mapped to a hash of their signature (everything but method bodies) and signatures of their supertypes
+	 */
+	public static Map<String, String> getSignatures(Map<String, byte[]> classes) {
+		Map<String, String> own = new HashMap<>();
+		Map<String, List<String>> supers = new HashMap<>();
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			MessageDigest digest = newDigest();
+			SignatureVisitor visitor = new SignatureVisitor(digest);
+			new ClassReader(entry.getValue()).accept(visitor, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			String name = entry.getKey().substring(0, entry.getKey().length() - 6);
+			own.put(name, Util.toHex(digest.digest()));
+			supers.put(name, visitor.supers);
+		}
+		// Casts and overload resolution depend on the whole hierarchy of a referenced class
+		Map<String, String> signatures = new HashMap<>();
+		for (String name : own.keySet()) {
+			getHierarchySignature(name, own, supers, signatures);
+		}
+		return signatures;
+	}
+
+	/**
+	 * @return hash of signatures of the class and its supertypes or <code>null</code> if it's not in the jar.
+	 * Library classes are covered by library contents in the key
+	 */
+	private static String getHierarchySignature(String name, Map<String, String> own, Map<String, List<String>> supers, Map<String, String> signatures) {
+		String signature = signatures.get(name);
+		if (signature != null) {
+			return signature;
+		}
+		String ownSignature = own.get(name);
+		if (ownSignature == null) {
+			return null;
+		}
+		// Placeholder in case of a cyclic hierarchy
+		signatures.put(name, ownSignature);
+		MessageDigest digest = newDigest();
+		update(digest, ownSignature);
+		for (String superName : supers.get(name)) {
+			String superSignature = getHierarchySignature(superName, own, supers, signatures);
+			update(digest, superSignature == null ? superName : superSignature);
+		}
+		signature = Util.toHex(digest.digest());
+		signatures.put(name, signature);
+		return signature;
+	}
+
+	/**
+	 * @param group      entry names of a top level class and its inner classes
+	 * @param classes    class entry names mapped to bytecode
+	 * @param signatures result of {@link #getSignatures(Map)}
+	 * @return key of decompiled source of this group
+	 */
+	public String getKey(List<String> group, Map<String, byte[]> classes, Map<String, String> signatures) {
+		MessageDigest digest = newDigest();
+		update(digest, optionsKey);
+		Set<String> references = new TreeSet<>();
+		List<String> sortedGroup = new ArrayList<>(group);
+		Collections.sort(sortedGroup);
+		for (String name : sortedGroup) {
+			byte[] bytes = classes.get(name);
+			update(digest, name);
+			digest.update(bytes);
+			references.addAll(getReferencedClasses(bytes));
+		}
+		for (String name : sortedGroup) {
+			references.remove(name.substring(0, name.length() - 6));
+		}
+		for (String reference : references) {
+			update(digest, reference);
+			String signature = signatures.get(reference);
+			if (signature != null) {
+				update(digest, signature);
+			}
+		}
+		return Util.toHex(digest.digest());
+	}
+
+	/**
+	 * @return cached source or <code>null</code> if there is none
+	 */
+	public byte[] get(String key) throws IOException {
+		Path file = getPath(key);
+		if (Files.exists(file)) {
+			hits++;
+			// Recently used entries are kept by prune()
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			return Files.readAllBytes(file);
+		}
+		misses++;
+		return null;
+	}
+
+	public void put(String key, byte[] source) throws IOException {
+		Path file = getPath(key);
+		Files.createDirectories(file.getParent());
+		Path tmp = file.resolveSibling(key + ".tmp");
+		Files.write(tmp, source);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes least recently used sources until the cache fits into {@link #MAX_SIZE}
+	 */
+	public void prune() throws IOException {
+		FileUtil.pruneLeastRecentlyUsed(cacheDir, MAX_SIZE);
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	private Path getPath(String key) {
+		return cacheDir.resolve(key.substring(0, 2)).resolve(key);
+	}
+
+	private static Set<String> getReferencedClasses(byte[] bytes) {
+		Set<String> references = new TreeSet<>();
+		new ClassReader(bytes).accept(new ClassRemapper(new ClassNode(), new Remapper() {
+			@Override
+			public String map(String internalName) {
+				references.add(internalName);
+				return internalName;
+			}
+		}), ClassReader.SKIP_FRAMES);
+		return references;
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class SignatureVisitor extends ClassVisitor {
+		private final MessageDigest digest;
+		final List<String> supers = new ArrayList<>();
+
+		SignatureVisitor(MessageDigest digest) {
+			super(Opcodes.ASM9);
+			this.digest = digest;
+		}
+
+		private void update(Object... values) {
+			for (Object value : values) {
+				if (value instanceof String[]) {
+					for (String s : (String[]) value) {
+						DecompileCache.update(digest, s);
+					}
+				} else {
+					DecompileCache.update(digest, String.valueOf(value));
+				}
+			}
+		}
+
+		@Override
+		public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+			update("class", access, name, signature, superName, interfaces == null ? new String[0] : interfaces);
+			if (superName != null) {
+				supers.add(superName);
+			}
+			if (interfaces != null) {
+				Collections.addAll(supers, interfaces);
+			}
+		}
+
+		@Override
+		public void visitOuterClass(String owner, String name, String descriptor) {
+			update("outer", owner, name, descriptor);
+		}
+
+		@Override
+		public void visitInnerClass(String name, String outerName, String innerName, int access) {
+			update("inner", name, outerName, innerName, access);
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+			update("field", access, name, descriptor, signature, value);
+			return null;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+			update("method", access, name, descriptor, signature, exceptions == null ? new String[0] : exceptions);
+			return null;
+		}
+	}
+}
@@ -4,29 +4,185 @@ import de.fernflower.main.extern.IFernflowerLogger;
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.tasks.ProgressListener;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
 public class DecompileLogger extends IFernflowerLogger {
+	private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
 
 	private final ProgressListener listener;
+	private final DecompileReport report;
 	private int total;
+	private double[] workerProgress;
+	private long classTimeout;
+
+	// State of the class being decompiled. Every logger is only used by a single decompiler thread
+	private DecompileReport.ClassStats current;
+	private long classStart;
+	private boolean reading;
+	private long allocationStart;
+	private int processDepth;
+	private long processStart;
+	private long writeStart;
 
 	public DecompileLogger(ProgressListener listener) {
+		this(listener, new DecompileReport());
+	}
+
+	private DecompileLogger(ProgressListener listener, DecompileReport report) {
 		this.listener = listener;
+		this.report = report;
+	}
+
+	/**
+	 * Decompilation of a class taking longer than <code>millis</code> is aborted before its next method.
+	 * Fernflower doesn't save aborted classes
+	 *
+	 * @param millis time limit or 0 for none
+	 */
+	public void setClassTimeout(long millis) {
+		this.classTimeout = millis * 1000000L;
+	}
+
+	/**
+	 * @return report shared by this logger and every worker logger created from it
+	 */
+	public DecompileReport getReport() {
+		return report;
+	}
+
+	/**
+	 * Creates a logger for one of <code>workers</code> decompiler threads.
+	 * Progress of every worker is averaged into this logger's listener
+	 *
+	 * @param worker  index of the worker
+	 * @param workers total amount of workers
+	 * @return logger reporting to this logger
+	 */
+	public DecompileLogger forWorker(int worker, int workers) {
+		synchronized (this) {
+			if (workerProgress == null || workerProgress.length != workers) {
+				workerProgress = new double[workers];
+			}
+		}
+		DecompileLogger logger = new DecompileLogger(new ProgressListener() {
+			@Override
+			public void setProgress(String progressMessage) {
+				synchronized (DecompileLogger.this) {
+					listener.setProgress(progressMessage);
+				}
+			}
+
+			@Override
+			public void setProgress(int progress) {
+				updateWorker(worker, progress);
+			}
+		}, report);
+		logger.classTimeout = classTimeout;
+		return logger;
+	}
+
+	private synchronized void updateWorker(int worker, int progress) {
+		workerProgress[worker] = progress;
+		double sum = 0;
+		for (double d : workerProgress) {
+			sum += d;
+		}
+		listener.setProgress((int) (sum / workerProgress.length));
 	}
 
 	@Override
 	public void writeMessage(String message, Severity severity) {
 		if(severity.ordinal() >= Severity.WARN.ordinal()) {
-//			System.out.println(message);
+			report.addFailure(new DecompileReport.Failure(current == null ? null : current.name, severity.name(), message, null));
+		}
+		if (severity == Severity.ERROR && current != null) {
+			current.failedMethods++;
 		}
-    }
+	}
 
 	@Override
 	public void writeMessage(String message, Throwable t) {
+		if (current != null) {
+			current.failedMethods++;
+		}
+		report.addFailure(new DecompileReport.Failure(current == null ? null : current.name, Severity.ERROR.name(), message, t));
 	}
 
 	@Override
 	public void startReadingClass(String className) {
 		listener.setProgress(MCP.TRANSLATOR.translateKey("task.stage.decompile") + " " + className);
+		current = new DecompileReport.ClassStats(className);
+		processDepth = 0;
+		reading = true;
+		allocationStart = getAllocatedBytes();
+		classStart = System.nanoTime();
+	}
+
+	@Override
+	public void endReadingClass() {
+		if (current == null) {
+			return;
+		}
+		current.totalTime = System.nanoTime() - classStart;
+		long allocated = getAllocatedBytes();
+		if (allocated != -1 && allocationStart != -1) {
+			current.allocatedBytes = allocated - allocationStart;
+		}
+		report.addClass(current);
+		current = null;
+	}
+
+	@Override
+	public void startClass(String className) {
+		if (processDepth++ == 0) {
+			processStart = System.nanoTime();
+			if (reading && current != null) {
+				current.readTime = processStart - classStart;
+			}
+			reading = false;
+		}
+	}
+
+	@Override
+	public void endClass() {
+		if (processDepth > 0 && --processDepth == 0 && current != null) {
+			current.processTime += System.nanoTime() - processStart;
+		}
+	}
+
+	@Override
+	public void startMethod(String methodName) {
+		if (classTimeout > 0 && current != null && System.nanoTime() - classStart > classTimeout) {
+			String message = "Exceeded time limit of " + classTimeout / 1000000L + " ms";
+			current.timedOut = true;
+			report.addFailure(new DecompileReport.Failure(current.name, DecompileReport.Failure.TIMEOUT, message, null));
+			// Fernflower catches this and moves on to the next class
+			throw new ClassTimeoutException(current.name + ": " + message);
+		}
+	}
+
+	@Override
+	public void startWriteClass(String className) {
+		writeStart = System.nanoTime();
+	}
+
+	@Override
+	public void endWriteClass() {
+		if (current != null) {
+			current.writeTime += System.nanoTime() - writeStart;
+		}
+	}
+
+	@SuppressWarnings("restriction")
+	private static long getAllocatedBytes() {
+		if (THREAD_BEAN instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_BEAN;
+			if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+				return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
 	}
 
 	@Override
@@ -39,4 +195,12 @@ public class DecompileLogger extends IFernflowerLogger {
 		listener.setProgress((int) ((double) current / (double) total * 100));
 	}
 
+
+	private static class ClassTimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		ClassTimeoutException(String message) {
+			super(message);
+		}
+	}
 }
@@ -0,0 +1,149 @@
+package org.mcphackers.mcp.tools.fernflower;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Timings, allocations and failures of every class decompiled by Fernflower.
+ * Filled by {@link DecompileLogger}, safe to use from multiple decompiler threads
+ */
+public class DecompileReport {
+	private final List<ClassStats> classes = new ArrayList<>();
+	private final List<Failure> failures = new ArrayList<>();
+	private final Set<String> incomplete = new HashSet<>();
+
+	public synchronized void addClass(ClassStats stats) {
+		classes.add(stats);
+		if (stats.timedOut || stats.failedMethods > 0) {
+			incomplete.add(stats.name);
+		}
+	}
+
+	/**
+	 * @param className internal name of a top level class
+	 * @return <code>false</code> if Fernflower failed on any method of the class or its inner classes or ran out of time
+	 */
+	public synchronized boolean isClean(String className) {
+		return !incomplete.contains(className);
+	}
+
+	public synchronized void addFailure(Failure failure) {
+		failures.add(failure);
+	}
+
+	/**
+	 * @return classes sorted by total time, slowest first
+	 */
+	public synchronized List<ClassStats> getClasses() {
+		List<ClassStats> sorted = new ArrayList<>(classes);
+		sorted.sort((a, b) -> Long.compare(b.totalTime, a.totalTime));
+		return sorted;
+	}
+
+	public List<ClassStats> getSlowest(int count) {
+		List<ClassStats> sorted = getClasses();
+		return sorted.subList(0, Math.min(count, sorted.size()));
+	}
+
+	public synchronized List<Failure> getFailures() {
+		return Collections.unmodifiableList(new ArrayList<>(failures));
+	}
+
+	public void write(Path path) throws IOException {
+		JSONObject json = new JSONObject();
+		JSONArray classArray = new JSONArray();
+		long totalTime = 0;
+		for (ClassStats stats : getClasses()) {
+			totalTime += stats.totalTime;
+			JSONObject obj = new JSONObject();
+			obj.put("name", stats.name);
+			obj.put("time", toMillis(stats.totalTime));
+			obj.put("readTime", toMillis(stats.readTime));
+			obj.put("processTime", toMillis(stats.processTime));
+			obj.put("writeTime", toMillis(stats.writeTime));
+			obj.put("allocatedBytes", stats.allocatedBytes);
+			obj.put("failedMethods", stats.failedMethods);
+			obj.put("timedOut", stats.timedOut);
+			classArray.put(obj);
+		}
+		JSONArray failureArray = new JSONArray();
+		for (Failure failure : getFailures()) {
+			JSONObject obj = new JSONObject();
+			obj.put("class", failure.className);
+			obj.put("severity", failure.severity);
+			obj.put("message", failure.message);
+			if (failure.exception != null) {
+				obj.put("exception", failure.exception);
+			}
+			failureArray.put(obj);
+		}
+		json.put("totalTime", toMillis(totalTime));
+		json.put("classes", classArray);
+		json.put("failures", failureArray);
+		try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+			json.write(writer, 1, 0);
+		}
+	}
+
+	public static double toMillis(long nanos) {
+		return nanos / 1000000D;
+	}
+
+	public static class ClassStats {
+		public final String name;
+		/**
+		 * Wall time in nanoseconds
+		 */
+		public long totalTime;
+		/**
+		 * Time spent reading the class before Fernflower started processing it
+		 */
+		public long readTime;
+		public long processTime;
+		public long writeTime;
+		/**
+		 * Bytes allocated by the decompiling thread or -1 if the JVM can't measure it
+		 */
+		public long allocatedBytes = -1;
+		/**
+		 * Methods Fernflower reported errors for, which are left undecompiled in the output
+		 */
+		public int failedMethods;
+		public boolean timedOut;
+
+		public ClassStats(String name) {
+			this.name = name;
+		}
+	}
+
+	public static class Failure {
+		public static final String TIMEOUT = "TIMEOUT";
+
+		public final String className;
+		public final String severity;
+		public final String message;
+		public final String exception;
+
+		public Failure(String className, String severity, String message, Throwable t) {
+			this.className = className;
+			this.severity = severity;
+			this.message = message;
+			this.exception = t == null ? null : t.toString();
+		}
+
+		@Override
+		public String toString() {
+			return (className == null ? "" : className + ": ") + message + (exception == null ? "" : " (" + exception + ")");
+		}
+	}
+}
@@ -1,49 +1,442 @@
 package org.mcphackers.mcp.tools.fernflower;
 
 import de.fernflower.main.decompiler.BaseDecompiler;
-import de.fernflower.main.decompiler.DirectoryResultSaver;
 import de.fernflower.main.extern.IBytecodeProvider;
 import de.fernflower.main.extern.IFernflowerPreferences;
 import de.fernflower.util.InterpreterUtil;
 import org.mcphackers.mcp.MCP;
 import org.mcphackers.mcp.tasks.ProgressListener;
 import org.mcphackers.mcp.tasks.mode.TaskParameter;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceClassVisitor;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 public class Decompiler implements IBytecodeProvider {
+	/**
+	 * Rough amount of heap a Fernflower context needs per byte of class data it's created from
+	 */
+	private static final int CONTEXT_OVERHEAD = 8;
+
 	public final DecompileLogger log;
 	private final Path source;
 	private final List<Path> libraries;
-	private final Path destination;
 	private final Map<String, Object> mapOptions;
+	private final int threads;
+	private boolean heapLimited;
+	private final DecompileCache cache;
 	private final ZipFileCache openZips = new ZipFileCache();
+	private SourceResultSaver saver;
+	private Map<String, byte[]> sourceClasses;
+	private List<Path> sourceResources;
+	private Path shardDir;
+	private Map<String, byte[]> shardClasses;
+
+	public Decompiler(ProgressListener listener, Path source, Path out, List<Path> libs, MCP mcp) throws IOException {
+		this(listener, source, out, libs, mcp, null);
+	}
 
-	public Decompiler(ProgressListener listener, Path source, Path out, List<Path> libs, MCP mcp) {
+	/**
+	 * @param cacheDir directory of the decompiled source cache or <code>null</code> to always decompile every class
+	 */
+	public Decompiler(ProgressListener listener, Path source, Path out, List<Path> libs, MCP mcp, Path cacheDir) throws IOException {
 		this.source = source;
 		this.libraries = libs;
-		this.destination = out;
 		this.log = new DecompileLogger(listener);
         this.mapOptions = mcp.getOptions().getFernflowerOptions();
 		this.mapOptions.put(IFernflowerPreferences.REMOVE_BRIDGE, mcp.getOptions().getBooleanParameter(TaskParameter.GUESS_GENERICS) ? "1" : "0");
+		int methodTimeout = mcp.getOptions().getIntParameter(TaskParameter.METHOD_TIMEOUT);
+		if (methodTimeout > 0) {
+			this.mapOptions.put(IFernflowerPreferences.MAX_PROCESSING_METHOD, String.valueOf(methodTimeout));
+		}
+		this.log.setClassTimeout(mcp.getOptions().getIntParameter(TaskParameter.CLASS_TIMEOUT) * 1000L);
+		this.threads = Math.max(1, mcp.getOptions().getIntParameter(TaskParameter.THREADS));
+		this.cache = cacheDir == null ? null : new DecompileCache(cacheDir, mapOptions, libs);
+		this.saver = new SourceResultSaver(out);
+	}
+
+	/**
+	 * Replaces the default saver, which only writes to the output directory
+	 */
+	public void setResultSaver(SourceResultSaver saver) {
+		this.saver = saver;
+	}
+
+	/**
+	 * @return <code>true</code> if the last {@link #decompile()} used fewer threads than requested so that every worker fits into the heap
+	 */
+	public boolean isHeapLimited() {
+		return heapLimited;
+	}
+
+	/**
+	 * @return cache used by this decompiler or <code>null</code>
+	 */
+	public DecompileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * @return <code>true</code> if classes are split into shards, which happens with more than one thread or with a cache.
+	 * Otherwise a single Fernflower context decompiles the source jar directly
+	 */
+	public boolean isSharded() {
+		return threads > 1 || cache != null;
+	}
+
+	/**
+	 * Makes the decompiler read classes from memory instead of the source jar.
+	 * The source jar is not required to exist while decompiling if {@link #isSharded()}
+	 *
+	 * @param classes   class entry names mapped to bytecode
+	 * @param resources jars to copy non-class entries from
+	 */
+	public void setSourceClasses(Map<String, byte[]> classes, List<Path> resources) {
+		this.sourceClasses = classes;
+		this.sourceResources = resources;
 	}
 
 	public void decompile() throws IOException {
-		BaseDecompiler decompiler = new BaseDecompiler(this, new DirectoryResultSaver(destination.toFile()), mapOptions, log/*, javadocs.exists() ? new TinyJavadocProvider(javadocs) : null*/);
+		heapLimited = false;
+		if (isSharded()) {
+			decompileShards();
+		} else {
+			BaseDecompiler decompiler = new BaseDecompiler(this, saver, mapOptions, log/*, javadocs.exists() ? new TinyJavadocProvider(javadocs) : null*/);
+			addLibraries(decompiler);
+			decompiler.addSpace(source.toAbsolutePath().toFile(), true);
+			decompiler.decompileContext();
+			this.openZips.close();
+		}
+		saver.close();
+	}
+
+	/**
+	 * Looks up top level classes (together with their inner classes) in the cache, splits the remaining ones into shards
+	 * and decompiles every shard on its own worker thread. Each worker sees the other shards and cached classes as libraries,
+	 * so class structure of the whole jar is still available while only its own shard is written.
+	 * Fernflower contexts can't be shared between threads, so every worker holds its own structure of the whole jar
+	 * and the amount of workers is limited by {@link #getWorkerLimit(Map)}
+	 */
+	private void decompileShards() throws IOException {
+		Map<String, byte[]> classes = new HashMap<>();
+		readSource(classes);
+
+		// Outer class name -> entries of the class and its inner classes
+		Map<String, List<String>> groups = new TreeMap<>();
+		for (String name : classes.keySet()) {
+			int inner = name.indexOf('$');
+			String outer = inner == -1 ? name.substring(0, name.length() - 6) : name.substring(0, inner);
+			groups.computeIfAbsent(outer, k -> new ArrayList<>()).add(name);
+		}
+
+		Map<String, String> keys = new HashMap<>();
+		Set<String> saved = ConcurrentHashMap.newKeySet();
+		List<String> cached = new ArrayList<>();
+		List<List<String>> pending = new ArrayList<>();
+		if (cache != null) {
+			Map<String, String> signatures = DecompileCache.getSignatures(classes);
+			for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+				String key = cache.getKey(group.getValue(), classes, signatures);
+				byte[] src = cache.get(key);
+				if (src != null) {
+					saver.save(group.getKey() + ".java", src);
+					cached.addAll(group.getValue());
+				} else {
+					keys.put(group.getKey(), key);
+					pending.add(group.getValue());
+				}
+			}
+		} else {
+			pending.addAll(groups.values());
+		}
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		shardDir = source.resolveSibling("shards").toAbsolutePath();
+		shardClasses = classes;
+		FileUtil.deleteDirectoryInBackground(shardDir);
+		try {
+			// Fernflower reads class lists from jars on disk, even with a single worker
+			Files.createDirectories(shardDir);
+			List<Path> shards = new ArrayList<>();
+			List<List<String>> shardEntries = splitShards(pending, classes);
+			for (int i = 0; i < shardEntries.size(); i++) {
+				Path shard = shardDir.resolve("shard" + i + ".jar");
+				writeJar(shard, shardEntries.get(i), classes);
+				shards.add(shard);
+			}
+			List<Path> libs = new ArrayList<>(shards);
+			if (!cached.isEmpty()) {
+				Path cachedJar = shardDir.resolve("cached.jar");
+				writeJar(cachedJar, cached, classes);
+				libs.add(cachedJar);
+			}
+			saver.setListener((name, content) -> {
+				if (!name.endsWith(".java")) {
+					return;
+				}
+				String outer = name.substring(0, name.length() - 5);
+				saved.add(outer);
+				String key = keys.get(outer);
+				if (key != null) {
+					cacheSource(cache, log.getReport(), outer, key, content);
+				}
+			});
+			runWorkers(shards, libs);
+		} finally {
+			saver.setListener(null);
+			shardClasses = null;
+			try {
+				this.openZips.close();
+			} finally {
+				// Shards are removed whether decompilation succeeded or not
+				FileUtil.deleteDirectoryInBackground(shardDir);
+			}
+		}
+
+		// Fernflower doesn't save classes it failed on or which exceeded the time limit
+		for (List<String> group : pending) {
+			String first = group.get(0);
+			int inner = first.indexOf('$');
+			String outer = inner == -1 ? first.substring(0, first.length() - 6) : first.substring(0, inner);
+			if (!saved.contains(outer) && group.contains(outer + ".class")) {
+				saver.save(outer + ".java", getStub(outer, group, classes));
+			}
+		}
+	}
+
+	/**
+	 * Caches decompiled source of a class unless it's incomplete.
+	 * Saved classes are reported before they're passed to the saver on the same thread
+	 *
+	 * @param className internal name of a top level class
+	 */
+	static void cacheSource(DecompileCache cache, DecompileReport report, String className, String key, byte[] content) throws IOException {
+		if (report.isClean(className)) {
+			cache.put(key, content);
+		}
+	}
+
+	/**
+	 * @return source with bytecode of a class and its inner classes in comments
+	 */
+	private static byte[] getStub(String outer, List<String> group, Map<String, byte[]> classes) {
+		StringWriter stub = new StringWriter();
+		int pkg = outer.lastIndexOf('/');
+		if (pkg != -1) {
+			stub.append("package ").append(outer.substring(0, pkg).replace('/', '.')).append(";\n\n");
+		}
+		stub.append("// $MCP: ").append(outer.replace('/', '.')).append(" couldn't be decompiled\n");
+		List<String> sorted = new ArrayList<>(group);
+		Collections.sort(sorted);
+		for (String name : sorted) {
+			StringWriter bytecode = new StringWriter();
+			new ClassReader(classes.get(name)).accept(new TraceClassVisitor(null, new Textifier(), new PrintWriter(bytecode)), 0);
+			stub.append("//\n");
+			for (String line : bytecode.toString().split("\r?\n")) {
+				// Doubled backslashes can't form unicode escapes, which are translated even inside comments
+				stub.append("// ").append(line.replace("\\", "\\\\")).append('\n');
+			}
+		}
+		return stub.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void runWorkers(List<Path> shards, List<Path> libs) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(shards.size());
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int i = 0; i < shards.size(); i++) {
+				final int worker = i;
+				final Path shard = shards.get(i);
+				workers.add(pool.submit(() -> {
+					BaseDecompiler decompiler = new BaseDecompiler(this, saver, mapOptions, log.forWorker(worker, shards.size()));
+					addLibraries(decompiler);
+					for (Path lib : libs) {
+						if (!lib.equals(shard)) {
+							decompiler.addSpace(lib.toAbsolutePath().toFile(), false);
+						}
+					}
+					decompiler.addSpace(shard.toAbsolutePath().toFile(), true);
+					decompiler.decompileContext();
+				}));
+			}
+			IOException failure = null;
+			for (Future<?> worker : workers) {
+				try {
+					worker.get();
+				} catch (InterruptedException | ExecutionException e) {
+					IOException ex = new IOException("Decompiler worker failed", e instanceof ExecutionException ? e.getCause() : e);
+					if (failure == null) {
+						failure = ex;
+					} else {
+						failure.addSuppressed(ex);
+					}
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads classes of the source jar into <code>classes</code>. Resources are saved straight away
+	 */
+	private void readSource(Map<String, byte[]> classes) throws IOException {
+		if (sourceClasses != null) {
+			classes.putAll(sourceClasses);
+			for (Path jar : sourceResources) {
+				copyResources(jar);
+			}
+			return;
+		}
+		try (ZipFile zip = new ZipFile(source.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory()) {
+					continue;
+				}
+				String name = entry.getName();
+				if (name.endsWith(".class")) {
+					classes.put(name, Util.readAllBytes(zip.getInputStream(entry)));
+				} else {
+					try (InputStream is = zip.getInputStream(entry)) {
+						saver.save(name, Util.readAllBytes(is));
+					}
+				}
+			}
+		}
+	}
+
+	private void copyResources(Path jar) throws IOException {
+		try (ZipFile zip = new ZipFile(jar.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (entry.isDirectory() || entry.getName().endsWith(".class")) {
+					continue;
+				}
+				try (InputStream is = zip.getInputStream(entry)) {
+					saver.save(entry.getName(), Util.readAllBytes(is));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Distributes class groups between at most <code>threads</code> shards, balanced by size.
+	 * Largest groups go first, each into the currently smallest shard
+	 */
+	private List<List<String>> splitShards(List<List<String>> groups, Map<String, byte[]> classes) throws IOException {
+		List<List<String>> sorted = new ArrayList<>(groups);
+		sorted.sort((a, b) -> Long.compare(groupSize(b, classes), groupSize(a, classes)));
+		int count = Math.max(1, Math.min(threads, sorted.size()));
+		int limit = getWorkerLimit(classes);
+		if (limit < count) {
+			count = limit;
+			heapLimited = true;
+		}
+		List<List<String>> shards = new ArrayList<>();
+		long[] shardSizes = new long[count];
+		for (int i = 0; i < count; i++) {
+			shards.add(new ArrayList<>());
+		}
+		for (List<String> group : sorted) {
+			int smallest = 0;
+			for (int i = 1; i < count; i++) {
+				if (shardSizes[i] < shardSizes[smallest]) {
+					smallest = i;
+				}
+			}
+			shards.get(smallest).addAll(group);
+			shardSizes[smallest] += groupSize(group, classes);
+		}
+		return shards;
+	}
+
+	/**
+	 * @return amount of worker contexts which fit into half of the maximum heap size
+	 */
+	private int getWorkerLimit(Map<String, byte[]> classes) throws IOException {
+		long contextSize = 0;
+		for (byte[] bytes : classes.values()) {
+			contextSize += bytes.length;
+		}
+		for (Path lib : libraries) {
+			if (Files.isRegularFile(lib)) {
+				contextSize += Files.size(lib);
+			}
+		}
+		long limit = Runtime.getRuntime().maxMemory() / 2 / Math.max(1, contextSize * CONTEXT_OVERHEAD);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, limit));
+	}
+
+	private static long groupSize(List<String> group, Map<String, byte[]> classes) {
+		long size = 0;
+		for (String name : group) {
+			size += classes.get(name).length;
+		}
+		return size;
+	}
+
+	private static void writeJar(Path jar, Collection<String> entries, Map<String, byte[]> classes) throws IOException {
+		try (OutputStream os = Files.newOutputStream(jar); ZipOutputStream zos = new ZipOutputStream(os)) {
+			// Shards only live for the duration of decompilation, no need to deflate them
+			zos.setMethod(ZipOutputStream.STORED);
+			for (String name : entries) {
+				byte[] bytes = classes.get(name);
+				CRC32 crc = new CRC32();
+				crc.update(bytes);
+				ZipEntry storedEntry = new ZipEntry(name);
+				storedEntry.setSize(bytes.length);
+				storedEntry.setCompressedSize(bytes.length);
+				storedEntry.setCrc(crc.getValue());
+				zos.putNextEntry(storedEntry);
+				zos.write(bytes);
+				zos.closeEntry();
+			}
+		}
+	}
+
+	private void addLibraries(BaseDecompiler decompiler) {
 		for (Path lib : libraries) {
 			if (Files.exists(lib))
 				decompiler.addSpace(lib.toAbsolutePath().toFile(), false);
 		}
-		decompiler.addSpace(source.toAbsolutePath().toFile(), true);
-		decompiler.decompileContext();
-		this.openZips.close();
 	}
 
 	@Override
@@ -52,6 +445,14 @@ public class Decompiler implements IBytecodeProvider {
 			File file = new File(externalPath);
 			return InterpreterUtil.getBytes(file);
 		} else {
+			// Shards are written from memory, serve their classes from there instead of reopening the jars
+			Map<String, byte[]> inMemory = shardClasses;
+			if (inMemory != null && Paths.get(externalPath).toAbsolutePath().startsWith(shardDir)) {
+				byte[] bytes = inMemory.get(internalPath);
+				if (bytes != null) {
+					return bytes;
+				}
+			}
 			final ZipFile archive = this.openZips.get(externalPath);
 			final ZipEntry entry = archive.getEntry(internalPath);
 			if (entry == null) {
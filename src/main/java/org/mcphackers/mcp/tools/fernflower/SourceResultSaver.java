@@ -0,0 +1,182 @@
+package org.mcphackers.mcp.tools.fernflower;
+
+import de.fernflower.main.extern.IResultSaver;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.mcphackers.mcp.tools.zip.ZipWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.Deflater;
+
+/**
+ * Writes decompiled sources into a directory and, in the same pass, into a source jar and a second directory.
+ * The second directory skips ignored packages, if ignored packages are set they are also left out of the first directory
+ */
+public class SourceResultSaver implements IResultSaver {
+	private final Path root;
+	private final Path jar;
+	private final Path copy;
+	private final String[] ignoredPackages;
+	private final boolean resources;
+	private final Map<String, byte[]> jarEntries = new TreeMap<>();
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private Listener listener;
+
+	public SourceResultSaver(Path root) {
+		this(root, null, null, new String[0], true);
+	}
+
+	/**
+	 * @param root            directory to save sources to
+	 * @param jar             source jar with every saved file or <code>null</code>
+	 * @param copy            directory to copy sources outside ignored packages to or <code>null</code>
+	 * @param ignoredPackages packages which are not written to either of the directories
+	 * @param resources       whether to save anything other than .java files
+	 */
+	public SourceResultSaver(Path root, Path jar, Path copy, String[] ignoredPackages, boolean resources) {
+		this.root = root;
+		this.jar = jar;
+		this.copy = copy;
+		this.ignoredPackages = ignoredPackages;
+		this.resources = resources;
+	}
+
+	/**
+	 * @param level compression level of the source jar, see {@link ZipWriter#ZipWriter(Path, int)}
+	 */
+	public void setCompressionLevel(int level) {
+		this.compressionLevel = level;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @param name    path relative to the output directories, separated with '/'
+	 * @param content contents of the file
+	 */
+	public void save(String name, byte[] content) throws IOException {
+		if (!resources && !name.endsWith(".java")) {
+			return;
+		}
+		if (jar != null) {
+			synchronized (jarEntries) {
+				jarEntries.put(name, content);
+			}
+		}
+		if (!isIgnored(name, ignoredPackages)) {
+			write(root.resolve(name), content);
+			if (copy != null) {
+				write(copy.resolve(name), content);
+			}
+		}
+		if (listener != null) {
+			listener.saved(name, content);
+		}
+	}
+
+	/**
+	 * Writes the source jar. Entries are sorted so the jar doesn't depend on the order classes were decompiled in
+	 */
+	public void close() throws IOException {
+		if (jar == null) {
+			return;
+		}
+		try (ZipWriter writer = new ZipWriter(jar, compressionLevel)) {
+			writer.writeAll(new ArrayList<>(jarEntries.keySet()), jarEntries::get, Runtime.getRuntime().availableProcessors());
+		}
+		jarEntries.clear();
+	}
+
+	public static boolean isIgnored(String name, String[] ignoredPackages) {
+		for (String ignored : ignoredPackages) {
+			if (name.equals(ignored) || name.startsWith(ignored.endsWith("/") ? ignored : ignored + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void write(Path file, byte[] content) throws IOException {
+		FileUtil.createDirectories(file.getParent());
+		Files.write(file, content);
+	}
+
+	private void saveUnchecked(String name, byte[] content) {
+		try {
+			save(name, content);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void saveFolder(String path) {
+	}
+
+	@Override
+	public void copyFile(String source, String path, String entryName) {
+		try {
+			save(entryName, Files.readAllBytes(Paths.get(source)));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void saveClassFile(String path, String qualifiedName, String entryName, String content, int[] mapping) {
+		if (content != null) {
+			saveUnchecked(entryName, content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void createArchive(String path, String archiveName, Manifest manifest) {
+	}
+
+	@Override
+	public void saveDirEntry(String path, String archiveName, String entryName) {
+	}
+
+	@Override
+	public void copyEntry(String source, String path, String archiveName, String entryName) {
+		try (ZipFile zip = new ZipFile(source)) {
+			ZipEntry entry = zip.getEntry(entryName);
+			if (entry != null) {
+				try (InputStream is = zip.getInputStream(entry)) {
+					save(entryName, Util.readAllBytes(is));
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void saveClassEntry(String path, String archiveName, String qualifiedName, String entryName, String content) {
+		if (content != null) {
+			saveUnchecked(entryName, content.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	public void closeArchive(String path, String archiveName) {
+	}
+
+	public interface Listener {
+		void saved(String name, byte[] content) throws IOException;
+	}
+}
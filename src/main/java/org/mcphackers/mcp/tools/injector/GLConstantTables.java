@@ -0,0 +1,337 @@
+package org.mcphackers.mcp.tools.injector;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.mcphackers.mcp.tools.JSONUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+
+/**
+ * Lookup tables of {@link GLConstants}.
+ * Bundled tables are read from <code>gl_constants.bin</code>, which is compiled from <code>gl_constants.json</code> at build time
+ * by the <code>compileGLConstants</code> gradle task. The JSON is only parsed if the binary form is missing or for user overrides
+ */
+public final class GLConstantTables {
+	private static final int MAGIC = 0x474C4301; // "GLC" 1
+	private static final char[] OPERATORS = {'|', '&', '^'};
+
+	/**
+	 * Owner -> method name -> constant tables of every group declaring this method, in order of declaration
+	 */
+	private final Map<String, Map<String, List<IntTable<Template>>>> methods;
+	private final IntTable<String> keyboard;
+
+	private GLConstantTables(Map<String, Map<String, List<IntTable<Template>>>> methods, IntTable<String> keyboard) {
+		this.methods = methods;
+		this.keyboard = keyboard;
+	}
+
+	/**
+	 * @return bundled tables or <code>null</code> if they couldn't be read. Loaded on first use
+	 */
+	public static GLConstantTables getDefault() {
+		return Default.TABLES;
+	}
+
+	/**
+	 * @return tables read from gl_constants.json or <code>null</code> if the JSON is invalid
+	 */
+	public static GLConstantTables readJSON(InputStream is) {
+		JSONObject json = JSONUtil.getJSON(is);
+		if (json == null) {
+			return null;
+		}
+		return new GLConstantTables(getMethods(json.optJSONArray("CONSTANTS")), toTable(JSONUtil.toMap(json.optJSONObject("CONSTANTS_KEYBOARD"))));
+	}
+
+	/**
+	 * Reads tables in the format written by <code>compileGLConstants</code>:
+	 * <pre>
+	 * int magic
+	 * int groups, for every group:
+	 *   int owners, for every owner: UTF owner, int methods, UTF method...
+	 *   int constants, for every constant: int value, UTF owner, UTF expression
+	 * int keys, for every key: int value, UTF name
+	 * </pre>
+	 * Duplicate constants of a group are already resolved by the build
+	 */
+	public static GLConstantTables readBinary(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(Util.readAllBytes(is)));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a GL constants table");
+		}
+		Map<String, Map<String, List<IntTable<Template>>>> methods = new HashMap<>();
+		int groups = in.readInt();
+		for (int i = 0; i < groups; i++) {
+			List<String[]> groupMethods = new ArrayList<>();
+			int owners = in.readInt();
+			for (int j = 0; j < owners; j++) {
+				String owner = "org/lwjgl/opengl/" + in.readUTF();
+				int count = in.readInt();
+				for (int k = 0; k < count; k++) {
+					groupMethods.add(new String[]{owner, in.readUTF()});
+				}
+			}
+			IntTable<Template> group = new IntTable<>();
+			int constants = in.readInt();
+			for (int j = 0; j < constants; j++) {
+				int value = in.readInt();
+				String owner = "org/lwjgl/opengl/" + in.readUTF();
+				group.put(value, new Template(owner, in.readUTF()));
+			}
+			for (String[] method : groupMethods) {
+				addGroup(methods, method[0], method[1], group);
+			}
+		}
+		IntTable<String> keyboard = new IntTable<>();
+		int keys = in.readInt();
+		for (int i = 0; i < keys; i++) {
+			keyboard.put(in.readInt(), in.readUTF());
+		}
+		return new GLConstantTables(methods, keyboard);
+	}
+
+	public boolean hasMethod(String owner, String name) {
+		Map<String, List<IntTable<Template>>> ownerMethods = methods.get(owner);
+		return ownerMethods != null && ownerMethods.containsKey(name);
+	}
+
+	/**
+	 * @return instructions loading the constant passed to <code>owner.name</code> or <code>null</code> if it's unknown
+	 */
+	public InsnList getGLInsn(String owner, String name, int constant) {
+		Map<String, List<IntTable<Template>>> ownerMethods = methods.get(owner);
+		List<IntTable<Template>> groups = ownerMethods == null ? null : ownerMethods.get(name);
+		if (groups == null) {
+			return null;
+		}
+		for (IntTable<Template> group : groups) {
+			Template template = group.get(constant);
+			if (template != null) {
+				return template.build();
+			}
+		}
+		return null;
+	}
+
+	public String getKeyboardConstant(int constant) {
+		return keyboard.get(constant);
+	}
+
+	private static void addGroup(Map<String, Map<String, List<IntTable<Template>>>> methods, String owner, String name, IntTable<Template> group) {
+		List<IntTable<Template>> groups = methods.computeIfAbsent(owner, k -> new HashMap<>()).computeIfAbsent(name, k -> new ArrayList<>());
+		if (!groups.contains(group)) {
+			groups.add(group);
+		}
+	}
+
+	private static Map<String, Map<String, List<IntTable<Template>>>> getMethods(JSONArray jsonArray) {
+		Map<String, Map<String, List<IntTable<Template>>>> methods = new HashMap<>();
+		if (jsonArray == null) {
+			return methods;
+		}
+		for (int i = 0; i < jsonArray.length(); i++) {
+			JSONArray a = jsonArray.optJSONArray(i);
+			if (a == null || a.length() < 2) continue;
+			JSONObject methodKeys = a.optJSONObject(0);
+			JSONObject methodValues = a.optJSONObject(1);
+			if (methodKeys == null || methodValues == null) continue;
+
+			// The first class declaring a constant wins, same as looking it up class by class
+			Map<String, Map<Integer, String>> map2 = new HashMap<>();
+			Iterator<String> keys2 = methodValues.keys();
+			while (keys2.hasNext()) {
+				String key = keys2.next();
+				JSONObject value = methodValues.optJSONObject(key);
+				if (value == null) continue;
+				map2.put(key, JSONUtil.toMap(value));
+			}
+			IntTable<Template> group = new IntTable<>();
+			for (Entry<String, Map<Integer, String>> entry : map2.entrySet()) {
+				String key = entry.getKey();
+				for (Entry<Integer, String> constant : entry.getValue().entrySet()) {
+					if (group.get(constant.getKey()) == null) {
+						group.put(constant.getKey(), new Template("org/lwjgl/opengl/" + key, constant.getValue()));
+					}
+				}
+			}
+
+			Iterator<String> keys = methodKeys.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				JSONArray value = methodKeys.optJSONArray(key);
+				if (value == null) continue;
+				for (String method : JSONUtil.toList(value)) {
+					addGroup(methods, "org/lwjgl/opengl/" + key, method, group);
+				}
+			}
+		}
+		return methods;
+	}
+
+	private static IntTable<String> toTable(Map<Integer, String> map) {
+		IntTable<String> table = new IntTable<>();
+		for (Entry<Integer, String> entry : map.entrySet()) {
+			table.put(entry.getKey(), entry.getValue());
+		}
+		return table;
+	}
+
+	private static int indexOf(char[] ch, int fromIndex, String string) {
+		for (int i = fromIndex; i < string.length(); i++) {
+			char c = string.charAt(i);
+			for (char op : ch) {
+				if (c == op) {
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Holder of bundled tables, initialized on first access
+	 */
+	private static final class Default {
+		private static final GLConstantTables TABLES = load();
+
+		private static GLConstantTables load() {
+			ClassLoader loader = GLConstantTables.class.getClassLoader();
+			try (InputStream is = loader.getResourceAsStream("gl_constants.bin")) {
+				if (is != null) {
+					return readBinary(is);
+				}
+			} catch (IOException ignored) {
+				// Fall back to JSON
+			}
+			try (InputStream is = loader.getResourceAsStream("gl_constants.json")) {
+				return is == null ? null : readJSON(is);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Instructions of a constant expression such as <code>GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT</code>, parsed once
+	 */
+	private static final class Template {
+		private final String owner;
+		private final String[] names;
+		private final int[] operators;
+
+		Template(String owner, String constantValue) {
+			this.owner = owner;
+			List<String> names = new ArrayList<>();
+			List<Integer> operators = new ArrayList<>();
+			int i = -1;
+			do {
+				char operator = i == -1 ? 0 : constantValue.charAt(i);
+				int index1 = i + 1;
+				i = indexOf(OPERATORS, index1, constantValue);
+				int index2 = i == -1 ? constantValue.length() : i;
+				names.add(constantValue.substring(index1, index2).trim());
+				switch (operator) {
+					case '|':
+						operators.add(Opcodes.IOR);
+						break;
+					case '&':
+						operators.add(Opcodes.IAND);
+						break;
+					case '^':
+						operators.add(Opcodes.IXOR);
+						break;
+					default:
+						operators.add(-1);
+						break;
+				}
+			} while (i != -1);
+			this.names = names.toArray(new String[0]);
+			this.operators = new int[operators.size()];
+			for (int j = 0; j < this.operators.length; j++) {
+				this.operators[j] = operators.get(j);
+			}
+		}
+
+		InsnList build() {
+			InsnList instructions = new InsnList();
+			for (int i = 0; i < names.length; i++) {
+				instructions.add(new FieldInsnNode(Opcodes.GETSTATIC, owner, names[i], "I"));
+				if (operators[i] != -1) {
+					instructions.add(new InsnNode(operators[i]));
+				}
+			}
+			return instructions;
+		}
+	}
+
+	/**
+	 * Open addressing hash table with primitive int keys
+	 */
+	private static final class IntTable<T> {
+		private int[] keys = new int[16];
+		private Object[] values = new Object[16];
+		private int size;
+
+		@SuppressWarnings("unchecked")
+		T get(int key) {
+			int mask = keys.length - 1;
+			for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return (T) values[i];
+				}
+			}
+			return null;
+		}
+
+		void put(int key, T value) {
+			if ((size + 1) * 2 > keys.length) {
+				int[] oldKeys = keys;
+				Object[] oldValues = values;
+				keys = new int[oldKeys.length * 2];
+				values = new Object[oldValues.length * 2];
+				size = 0;
+				for (int i = 0; i < oldKeys.length; i++) {
+					if (oldValues[i] != null) {
+						insert(oldKeys[i], oldValues[i]);
+					}
+				}
+			}
+			insert(key, value);
+		}
+
+		private void insert(int key, Object value) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while (values[i] != null) {
+				if (keys[i] == key) {
+					values[i] = value;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = key;
+			values[i] = value;
+			size++;
+		}
+
+		private static int hash(int key) {
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+}
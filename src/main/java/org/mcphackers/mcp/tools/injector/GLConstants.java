@@ -1,16 +1,12 @@
 package org.mcphackers.mcp.tools.injector;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.mcphackers.mcp.tools.JSONUtil;
 import org.mcphackers.rdi.injector.visitors.ClassVisitor;
 import org.mcphackers.rdi.util.IdentifyCall;
 import org.mcphackers.rdi.util.Pair;
@@ -18,7 +14,6 @@ import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.AbstractInsnNode;
 import org.objectweb.asm.tree.FieldInsnNode;
 import org.objectweb.asm.tree.InsnList;
-import org.objectweb.asm.tree.InsnNode;
 import org.objectweb.asm.tree.IntInsnNode;
 import org.objectweb.asm.tree.LdcInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
@@ -26,29 +21,37 @@ import org.objectweb.asm.tree.MethodNode;
 
 public final class GLConstants extends ClassVisitor {
 
-	private static final boolean INIT;
-	private static final List<Pair<Map<String, List<String>>, Map<String, Map<Integer, String>>>> CONSTANTS;
-	private static final Map<Integer, String> CONSTANTS_KEYBOARD;
-	private static final List<String> PACKAGES;
-	private static final char[] OPERATORS = {'|', '&', '^'};
+	private final GLConstantTables tables;
 
-	static {
-		JSONObject json = JSONUtil.getJSON(GLConstants.class.getClassLoader().getResourceAsStream("gl_constants.json"));
-		if (json != null) {
-			CONSTANTS = getConstants(json.optJSONArray("CONSTANTS"));
-			CONSTANTS_KEYBOARD = JSONUtil.toMap(json.optJSONObject("CONSTANTS_KEYBOARD"));
-			PACKAGES = getPackages(CONSTANTS);
-			INIT = true;
-		} else {
-			CONSTANTS = null;
-			CONSTANTS_KEYBOARD = null;
-			PACKAGES = null;
-			INIT = false;
-		}
+	public GLConstants(ClassVisitor classVisitor) {
+		this(classVisitor, GLConstantTables.getDefault());
 	}
 
-	public GLConstants(ClassVisitor classVisitor) {
+	/**
+	 * @param tables constants to replace, shared by every visitor using them
+	 */
+	public GLConstants(ClassVisitor classVisitor, GLConstantTables tables) {
 		super(classVisitor);
+		this.tables = tables;
+	}
+
+	/**
+	 * @param override gl_constants.json to use instead of bundled constants, ignored if it doesn't exist
+	 * @return tables read from <code>override</code> or bundled tables
+	 * @throws IOException if the override exists but can't be read or isn't valid JSON
+	 */
+	public static GLConstantTables loadTables(Path override) throws IOException {
+		if (override == null || !Files.exists(override)) {
+			return GLConstantTables.getDefault();
+		}
+		GLConstantTables overrideTables;
+		try (InputStream is = Files.newInputStream(override)) {
+			overrideTables = GLConstantTables.readJSON(is);
+		}
+		if (overrideTables == null) {
+			throw new IOException("Invalid GL constants override: " + override);
+		}
+		return overrideTables;
 	}
 
 	private static boolean isICmp(int opcode) {
@@ -99,130 +102,28 @@ public final class GLConstants extends ClassVisitor {
 	}
 
 	public static FieldInsnNode getKeyboardInsn(int constant) {
-		String constantString = CONSTANTS_KEYBOARD.get(constant);
-		return constantString == null ? null : new FieldInsnNode(Opcodes.GETSTATIC, "org/lwjgl/input/Keyboard", constantString, "I");
-	}
-
-	public static InsnList getGLInsn(MethodInsnNode invoke, int constant) {
-		String pkg = invoke.owner.substring(17); //invoke.owner.replace("org/lwjgl/opengl/", "");
-		for (Pair<Map<String, List<String>>, Map<String, Map<Integer, String>>> group : CONSTANTS) {
-			Map<String, List<String>> methodKeys = group.getLeft();
-			List<String> methodList = methodKeys.get(pkg);
-			if (methodList != null && methodList.contains(invoke.name)) {
-				Map<String, Map<Integer, String>> methodValues = group.getRight();
-				for (Entry<String, Map<Integer, String>> entry : methodValues.entrySet()) {
-					String key = entry.getKey();
-					Map<Integer, String> value = entry.getValue();
-					String constantValue = value.get(constant);
-					if (constantValue == null) continue;
-
-					InsnList instructions = new InsnList();
-					int i = -1;
-					do {
-						char operator = i == -1 ? 0 : constantValue.charAt(i);
-						int index1 = i + 1;
-						i = indexOf(OPERATORS, index1, constantValue);
-						int index2 = i == -1 ? constantValue.length() : i;
-						String name = constantValue.substring(index1, index2).trim();
-						instructions.add(new FieldInsnNode(Opcodes.GETSTATIC, "org/lwjgl/opengl/" + key, name, "I"));
-						switch (operator) {
-							case '|':
-								instructions.add(new InsnNode(Opcodes.IOR));
-								break;
-							case '&':
-								instructions.add(new InsnNode(Opcodes.IAND));
-								break;
-							case '^':
-								instructions.add(new InsnNode(Opcodes.IXOR));
-								break;
-						}
-					} while (i != -1);
-					return instructions;
-				}
-			}
-		}
-		return null;
+		return getKeyboardInsn(GLConstantTables.getDefault(), constant);
 	}
 
-	public static int indexOf(char[] ch, int fromIndex, String string) {
-		final int max = string.length();
-		if (fromIndex < 0) {
-			fromIndex = 0;
-		} else if (fromIndex >= max) {
-			return -1;
-		}
-
-		final char[] value = string.toCharArray();
-		for (int i = fromIndex; i < max; i++) {
-			for (char c : ch) {
-				if (value[i] == c) {
-					return i;
-				}
-			}
-		}
-		return -1;
-	}
-
-	// Private methods for initialization
-	private static List<Pair<Map<String, List<String>>, Map<String, Map<Integer, String>>>> getConstants(JSONArray jsonArray) {
-		if (jsonArray == null || jsonArray.isEmpty()) {
-			return Collections.emptyList();
-		}
-		List<Pair<Map<String, List<String>>, Map<String, Map<Integer, String>>>> list = new ArrayList<>();
-		for (int i = 0; i < jsonArray.length(); i++) {
-			JSONArray a = jsonArray.optJSONArray(i);
-			if (a == null || a.length() < 2) continue;
-			JSONObject methodKeys = a.optJSONObject(0);
-			JSONObject methodValues = a.optJSONObject(1);
-			if (methodKeys == null || methodValues == null) continue;
-
-			Map<String, List<String>> map = new HashMap<>();
-			Iterator<String> keys = methodKeys.keys();
-			while (keys.hasNext()) {
-				String key = keys.next();
-				JSONArray value = methodKeys.optJSONArray(key);
-				if (value == null) continue;
-				map.put(key, JSONUtil.toList(value));
-			}
-
-			Map<String, Map<Integer, String>> map2 = new HashMap<>();
-			Iterator<String> keys2 = methodValues.keys();
-			while (keys2.hasNext()) {
-				String key = keys2.next();
-				JSONObject value = methodValues.optJSONObject(key);
-				if (value == null) continue;
-				map2.put(key, JSONUtil.toMap(value));
-			}
-
-			list.add(Pair.of(map, map2));
-		}
-		return list;
+	private static FieldInsnNode getKeyboardInsn(GLConstantTables tables, int constant) {
+		String constantString = tables.getKeyboardConstant(constant);
+		return constantString == null ? null : new FieldInsnNode(Opcodes.GETSTATIC, "org/lwjgl/input/Keyboard", constantString, "I");
 	}
 
-	private static List<String> getPackages(List<Pair<Map<String, List<String>>, Map<String, Map<Integer, String>>>> constants) {
-		if (constants == null || constants.isEmpty()) {
-			return Collections.emptyList();
-		}
-		List<String> list = new ArrayList<>();
-		for (Pair<Map<String, List<String>>, ?> pair : constants) {
-			Map<String, ?> methodKeys = pair.getLeft();
-			for (Entry<String, ?> entry : methodKeys.entrySet()) {
-				list.add("org/lwjgl/opengl/" + entry.getKey());
-			}
-		}
-		return list;
+	public static InsnList getGLInsn(MethodInsnNode invoke, int constant) {
+		return GLConstantTables.getDefault().getGLInsn(invoke.owner, invoke.name, constant);
 	}
 
 	@Override
 	protected void visitMethod(MethodNode node) {
-		if (!INIT) return;
+		if (tables == null) return;
 		InsnList instructions = node.instructions;
 		List<MethodInsnNode> glCalls = new ArrayList<>();
 		List<Pair<AbstractInsnNode, FieldInsnNode>> keyboardConstants = new ArrayList<>();
 		for (AbstractInsnNode insn : instructions) {
 			if (insn instanceof MethodInsnNode) {
 				MethodInsnNode invoke = (MethodInsnNode) insn;
-				if (PACKAGES != null && PACKAGES.contains(invoke.owner)) {
+				if (tables.hasMethod(invoke.owner, invoke.name)) {
 					glCalls.add(invoke);
 				}
 				if (invoke.owner.equals("org/lwjgl/input/Keyboard")) {
@@ -233,7 +134,7 @@ public final class GLConstants extends ClassVisitor {
 						}
 						Integer value = intValue(iconst);
 						if (value != null) {
-							FieldInsnNode getField = getKeyboardInsn(value);
+							FieldInsnNode getField = getKeyboardInsn(tables, value);
 							if (getField != null) {
 								keyboardConstants.add(Pair.of(iconst, getField));
 							}
@@ -260,7 +161,7 @@ public final class GLConstants extends ClassVisitor {
 						if (hasCompare) {
 							Integer value = intValue(iconst);
 							if (value != null) {
-								FieldInsnNode getField = getKeyboardInsn(value);
+								FieldInsnNode getField = getKeyboardInsn(tables, value);
 								if (getField != null) {
 									keyboardConstants.add(Pair.of(iconst, getField));
 								}
@@ -284,7 +185,7 @@ public final class GLConstants extends ClassVisitor {
 					}
 					Integer intValue = intValue(insn);
 					if (intValue != null) {
-						InsnList newinsns = getGLInsn(invoke, intValue);
+						InsnList newinsns = tables.getGLInsn(invoke.owner, invoke.name, intValue);
 						if (newinsns != null) {
 							instructions.insert(insn, newinsns);
 							instructions.remove(insn);
@@ -0,0 +1,118 @@
+package org.mcphackers.mcp.tools.injector;
+
+import org.mcphackers.mcp.MCP;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Stores output of RDI keyed by a fingerprint of everything the output depends on:
+ * input jars, mappings, exceptions, access transformers, injector flags and versions of MCP and RDI
+ */
+public class InjectorCache {
+	/**
+	 * Size in bytes the cache is pruned to, a few versions of Minecraft with different mappings
+	 */
+	public static final long MAX_SIZE = 256L * 1024 * 1024;
+
+	private final Path cacheDir;
+	private final Path jar;
+
+	/**
+	 * @param cacheDir directory with cached jars
+	 * @param inputs   files read by the injector, missing files are allowed
+	 * @param flags    string describing every option affecting the output
+	 */
+	public InjectorCache(Path cacheDir, List<Path> inputs, String flags) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, MCP.VERSION);
+		update(digest, Util.getLibraryVersion("rdi"));
+		update(digest, flags);
+		byte[] buffer = new byte[65536];
+		for (Path input : inputs) {
+			update(digest, input.getFileName().toString());
+			if (!Files.exists(input)) {
+				update(digest, "missing");
+				continue;
+			}
+			try (InputStream is = Files.newInputStream(input)) {
+				int read;
+				while ((read = is.read(buffer)) != -1) {
+					digest.update(buffer, 0, read);
+				}
+			}
+		}
+		this.cacheDir = cacheDir;
+		this.jar = cacheDir.resolve(Util.toHex(digest.digest()) + ".jar");
+	}
+
+	public boolean exists() {
+		return Files.exists(jar);
+	}
+
+	/**
+	 * Copies cached jar to <code>out</code>
+	 *
+	 * @return class entry names of the cached jar mapped to bytecode
+	 */
+	public Map<String, byte[]> restore(Path out) throws IOException {
+		// Recently used jars are kept by prune()
+		Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis()));
+		Files.copy(jar, out, StandardCopyOption.REPLACE_EXISTING);
+		Map<String, byte[]> classes = new HashMap<>();
+		try (ZipFile zip = new ZipFile(jar.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory() && entry.getName().endsWith(".class")) {
+					try (InputStream is = zip.getInputStream(entry)) {
+						classes.put(entry.getName(), Util.readAllBytes(is));
+					}
+				}
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * Stores a copy of <code>output</code> under the current fingerprint
+	 */
+	public void store(Path output) throws IOException {
+		Files.createDirectories(jar.getParent());
+		Path tmp = jar.resolveSibling(jar.getFileName() + ".tmp");
+		Files.copy(output, tmp, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Deletes least recently used jars until the cache fits into {@link #MAX_SIZE}
+	 */
+	public void prune() throws IOException {
+		FileUtil.pruneLeastRecentlyUsed(cacheDir, MAX_SIZE);
+	}
+
+	private static void update(MessageDigest digest, String s) {
+		digest.update(s.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+	}
+}
@@ -0,0 +1,65 @@
+package org.mcphackers.mcp.tools.injector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+import org.mcphackers.rdi.injector.data.ClassStorage;
+import org.mcphackers.rdi.nio.RDInjector;
+import org.objectweb.asm.tree.ClassNode;
+
+/**
+ * Runs transforms which only modify one class at a time on a fork-join pool.
+ * Classes are split into ranges and each range is transformed by its own {@link RDInjector},
+ * configured the same way as a serial injector would be, so every class goes through transforms and visitors in the same order.
+ * Class order of the original storage is untouched
+ */
+public class ParallelTransform extends RecursiveAction {
+	private static final int THRESHOLD = 64;
+
+	private final List<ClassNode> nodes;
+	private final int from;
+	private final int to;
+	private final Consumer<RDInjector> configure;
+
+	private ParallelTransform(List<ClassNode> nodes, int from, int to, Consumer<RDInjector> configure) {
+		this.nodes = nodes;
+		this.from = from;
+		this.to = to;
+		this.configure = configure;
+	}
+
+	/**
+	 * @param storage   classes to transform
+	 * @param threads   parallelism of the pool
+	 * @param configure adds transforms and visitors to the injector of a range. They must not read or modify any class
+	 *                  other than the one being transformed. Called once per range, so visitors must not be shared between calls
+	 */
+	public static void apply(ClassStorage storage, int threads, Consumer<RDInjector> configure) {
+		List<ClassNode> nodes = new ArrayList<>();
+		for (ClassNode node : storage) {
+			nodes.add(node);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new ParallelTransform(nodes, 0, nodes.size(), configure));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= THRESHOLD) {
+			RDInjector injector = new RDInjector();
+			injector.setStorage(new ClassStorage(new ArrayList<>(nodes.subList(from, to))));
+			configure.accept(injector);
+			injector.transform();
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		invokeAll(new ParallelTransform(nodes, from, middle, configure), new ParallelTransform(nodes, middle, to, configure));
+	}
+}
@@ -0,0 +1,519 @@
+package org.mcphackers.mcp.tools.zip;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Zip file read through its central directory. Entries are looked up by name without scanning the archive
+ * and their data can be copied to a {@link ZipWriter} without inflating it
+ */
+public class ZipArchive implements Closeable {
+	static final int LOCAL_HEADER = 0x04034b50;
+	static final int CENTRAL_HEADER = 0x02014b50;
+	static final int END_HEADER = 0x06054b50;
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	static final int END_SIZE = 22;
+	static final int ZIP64_END_HEADER = 0x06064b50;
+	static final int ZIP64_LOCATOR = 0x07064b50;
+	static final int ZIP64_END_SIZE = 56;
+	static final int ZIP64_LOCATOR_SIZE = 20;
+	static final int ZIP64_EXTRA = 0x0001;
+	static final int ZIP64_VERSION = 45;
+	/**
+	 * Value of a size or offset which is stored in the ZIP64 extra field instead
+	 */
+	static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	/**
+	 * Amount of entries which is stored in the ZIP64 end record instead
+	 */
+	static final int ZIP64_MAX_COUNT = 0xFFFF;
+	private static final int FLAG_ENCRYPTED = 1;
+
+	private final FileChannel channel;
+	private final List<Entry> entries;
+	private final Map<String, Entry> entryMap;
+
+	public ZipArchive(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			entries = readCentralDirectory();
+			entryMap = new HashMap<>(entries.size() * 2);
+			for (Entry entry : entries) {
+				entryMap.putIfAbsent(entry.name, entry);
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return entries in order of the central directory
+	 */
+	public List<Entry> getEntries() {
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @return entry with this name or <code>null</code> if there is none
+	 */
+	public Entry getEntry(String name) {
+		return entryMap.get(name);
+	}
+
+	/**
+	 * Reads and inflates the whole entry. Safe to call from multiple threads
+	 *
+	 * @throws ZipException if the data doesn't match the CRC-32 of the entry
+	 */
+	public byte[] readBytes(Entry entry) throws IOException {
+		checkSupported(entry);
+		if (entry.size > Integer.MAX_VALUE - 8 || entry.compressedSize > Integer.MAX_VALUE - 8) {
+			throw new IOException("Entry too large: " + entry.name);
+		}
+		ByteBuffer data = read(getDataOffset(entry), (int) entry.compressedSize);
+		if (entry.method == ZipEntry.STORED) {
+			checkCRC(entry, data.array());
+			return data.array();
+		}
+		byte[] bytes = new byte[(int) entry.size];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data.array());
+			int length = 0;
+			while (length < bytes.length && !inflater.finished()) {
+				int n = inflater.inflate(bytes, length, bytes.length - length);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				length += n;
+			}
+			if (length != bytes.length) {
+				throw new IOException("Unexpected end of data of " + entry.name);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Invalid data of " + entry.name, e);
+		} finally {
+			inflater.end();
+		}
+		checkCRC(entry, bytes);
+		return bytes;
+	}
+
+	/**
+	 * Streams the entry without buffering it whole. Safe to call from multiple threads
+	 *
+	 * @return stream which throws {@link ZipException} at the end of data if it doesn't match the CRC-32 of the entry
+	 */
+	public InputStream getInputStream(Entry entry) throws IOException {
+		checkSupported(entry);
+		InputStream in = new EntryInputStream(getDataOffset(entry), entry.compressedSize, entry.method == ZipEntry.DEFLATED);
+		if (entry.method == ZipEntry.STORED) {
+			return new CheckedEntryStream(in, entry);
+		}
+		Inflater inflater = new Inflater(true);
+		return new CheckedEntryStream(new InflaterInputStream(in, inflater, 8192) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					inflater.end();
+					super.close();
+				}
+			}
+		}, entry);
+	}
+
+	private static void checkCRC(Entry entry, byte[] bytes) throws ZipException {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		if ((int) crc.getValue() != entry.crc) {
+			throw new ZipException("CRC-32 mismatch of " + entry.name);
+		}
+	}
+
+	/**
+	 * Extracts matching entries. Every directory is created up front, then files are inflated on <code>threads</code> threads.
+	 * Existing files are replaced. A file which fails the CRC-32 check is deleted and {@link ZipException} is thrown
+	 *
+	 * @param match tested before any data of the entry is read
+	 */
+	public void extract(Path destDir, Predicate<Entry> match, int threads) throws IOException {
+		Path root = destDir.toAbsolutePath().normalize();
+		Set<Path> directories = new TreeSet<>();
+		directories.add(root);
+		Map<Entry, Path> files = new HashMap<>();
+		Set<String> names = new HashSet<>();
+		for (Entry entry : entries) {
+			if (!names.add(entry.name) || !match.test(entry)) {
+				continue;
+			}
+			Path target = root.resolve(entry.name).normalize();
+			if (!target.startsWith(root)) {
+				throw new IOException("Entry is outside of the target directory: " + entry.name);
+			}
+			if (entry.isDirectory()) {
+				directories.add(target);
+			} else {
+				directories.add(target.getParent());
+				files.put(entry, target);
+			}
+		}
+		// Sorted, so parents are created before their children
+		for (Path dir : directories) {
+			if (!Files.isDirectory(dir)) {
+				Files.createDirectories(dir);
+			}
+		}
+		if (threads <= 1 || files.size() <= 1) {
+			for (Map.Entry<Entry, Path> file : files.entrySet()) {
+				extract(file.getKey(), file.getValue());
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, files.size()), r -> {
+			Thread thread = new Thread(r, "Zip extract");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<?>> futures = new ArrayList<>(files.size());
+			for (Map.Entry<Entry, Path> file : files.entrySet()) {
+				futures.add(executor.submit(() -> {
+					extract(file.getKey(), file.getValue());
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * The stream checks CRC-32 at the end of the entry, a file with corrupt contents is deleted again
+	 */
+	private void extract(Entry entry, Path target) throws IOException {
+		try (InputStream in = getInputStream(entry)) {
+			Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(target);
+			} catch (IOException e2) {
+				e.addSuppressed(e2);
+			}
+			throw e;
+		}
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return offset of compressed data of the entry
+	 */
+	long getDataOffset(Entry entry) throws IOException {
+		ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER) {
+			throw new IOException("Invalid local header of " + entry.name);
+		}
+		return entry.localHeaderOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+	}
+
+	private static void checkSupported(Entry entry) throws IOException {
+		if ((entry.flags & FLAG_ENCRYPTED) != 0) {
+			throw new IOException("Encrypted entries are not supported: " + entry.name);
+		}
+		if (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED) {
+			throw new IOException("Unsupported compression method " + entry.method + " of " + entry.name);
+		}
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		long size = channel.size();
+		int tail = (int) Math.min(size, END_SIZE + 0xFFFF);
+		ByteBuffer buffer = read(size - tail, tail);
+		int end = -1;
+		for (int i = tail - END_SIZE; i >= 0; i--) {
+			if (buffer.getInt(i) == END_HEADER) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) {
+			throw new IOException("Not a zip file");
+		}
+		long count = buffer.getShort(end + 10) & 0xFFFF;
+		long directorySize = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+		long directoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+		long locator = size - tail + end - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && read(locator, 4).getInt(0) == ZIP64_LOCATOR) {
+			long zip64End = read(locator + 8, 8).getLong(0);
+			ByteBuffer record = read(zip64End, ZIP64_END_SIZE);
+			if (record.getInt(0) != ZIP64_END_HEADER) {
+				throw new IOException("Invalid ZIP64 end of central directory");
+			}
+			count = record.getLong(32);
+			directorySize = record.getLong(40);
+			directoryOffset = record.getLong(48);
+		} else if (count == ZIP64_MAX_COUNT && (directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC)) {
+			throw new IOException("Missing ZIP64 end of central directory");
+		}
+		if (directorySize > Integer.MAX_VALUE - 8 || count > Integer.MAX_VALUE) {
+			throw new IOException("Central directory too large");
+		}
+		ByteBuffer directory = read(directoryOffset, (int) directorySize);
+		List<Entry> list = new ArrayList<>((int) count);
+		int pos = 0;
+		for (int i = 0; i < count; i++) {
+			if (directory.getInt(pos) != CENTRAL_HEADER) {
+				throw new IOException("Invalid central directory");
+			}
+			int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+			int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+			int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+			byte[] name = new byte[nameLength];
+			directory.position(pos + CENTRAL_HEADER_SIZE);
+			directory.get(name);
+			long[] sizes = {
+					directory.getInt(pos + 24) & 0xFFFFFFFFL,
+					directory.getInt(pos + 20) & 0xFFFFFFFFL,
+					directory.getInt(pos + 42) & 0xFFFFFFFFL
+			};
+			readZip64Extra(directory, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength, sizes);
+			list.add(new Entry(
+					name,
+					directory.getShort(pos + 8) & 0xFFFF,
+					directory.getShort(pos + 10) & 0xFFFF,
+					directory.getInt(pos + 12),
+					directory.getInt(pos + 16),
+					sizes[1],
+					sizes[0],
+					sizes[2]));
+			pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+		}
+		return list;
+	}
+
+	/**
+	 * Replaces values set to {@link #ZIP64_MAGIC} with the ones from the ZIP64 extra field
+	 *
+	 * @param values size, compressed size and local header offset, in the order the extra field stores them
+	 */
+	private static void readZip64Extra(ByteBuffer directory, int start, int length, long[] values) throws IOException {
+		int pos = start;
+		while (pos + 4 <= start + length) {
+			int id = directory.getShort(pos) & 0xFFFF;
+			int size = directory.getShort(pos + 2) & 0xFFFF;
+			if (id == ZIP64_EXTRA) {
+				int field = pos + 4;
+				for (int i = 0; i < values.length; i++) {
+					if (values[i] == ZIP64_MAGIC) {
+						if (field + 8 > pos + 4 + size) {
+							throw new IOException("Invalid ZIP64 extra field");
+						}
+						values[i] = directory.getLong(field);
+						field += 8;
+					}
+				}
+				return;
+			}
+			pos += 4 + size;
+		}
+	}
+
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) == -1) {
+				throw new IOException("Unexpected end of zip file");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads a range of the archive with positional reads, so streams of different entries don't share a position
+	 */
+	private class EntryInputStream extends InputStream {
+		private long position;
+		private final long end;
+		/**
+		 * Raw deflate streams may need an extra byte past their end to finish
+		 */
+		private boolean padding;
+
+		EntryInputStream(long position, long length, boolean padding) {
+			this.position = position;
+			this.end = position + length;
+			this.padding = padding;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= end) {
+				if (padding) {
+					padding = false;
+					b[off] = 0;
+					return 1;
+				}
+				return -1;
+			}
+			int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (n == -1) {
+				throw new IOException("Unexpected end of zip file");
+			}
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+	}
+
+	/**
+	 * Checks size and CRC-32 of inflated data once the end of the entry is reached
+	 */
+	private static class CheckedEntryStream extends FilterInputStream {
+		private final Entry entry;
+		private final CRC32 crc = new CRC32();
+		private long size;
+		private boolean checked;
+
+		CheckedEntryStream(InputStream in, Entry entry) {
+			super(in);
+			this.entry = entry;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n == -1) {
+				if (!checked) {
+					checked = true;
+					if (size != entry.size || (int) crc.getValue() != entry.crc) {
+						throw new ZipException("CRC-32 mismatch of " + entry.name);
+					}
+				}
+				return -1;
+			}
+			crc.update(b, off, n);
+			size += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// Skipped data has to be checked too
+			byte[] buffer = new byte[(int) Math.min(n, 8192)];
+			long skipped = 0;
+			while (skipped < n) {
+				int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+				if (read == -1) {
+					break;
+				}
+				skipped += read;
+			}
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	public static class Entry {
+		public final String name;
+		final byte[] rawName;
+		final int flags;
+		public final int method;
+		final int dosTime;
+		public final int crc;
+		public final long compressedSize;
+		public final long size;
+		final long localHeaderOffset;
+
+		Entry(byte[] rawName, int flags, int method, int dosTime, int crc, long compressedSize, long size, long localHeaderOffset) {
+			this.rawName = rawName;
+			this.name = new String(rawName, StandardCharsets.UTF_8);
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+
+		public boolean isDirectory() {
+			return name.endsWith("/");
+		}
+	}
+}
@@ -0,0 +1,379 @@
+package org.mcphackers.mcp.tools.zip;
+
+import static org.mcphackers.mcp.tools.zip.ZipArchive.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip file sequentially. Entries copied from a {@link ZipArchive} keep their compressed data as is.
+ * New entries can be compressed on multiple threads with {@link #writeAll(List, EntrySource, int)}.
+ * Every new entry gets the same timestamp, so equal inputs give equal archives.
+ * ZIP64 records are only written where sizes, offsets or the amount of entries don't fit into a regular zip.
+ * If writing fails, the partial file is deleted on {@link #close()}
+ */
+public class ZipWriter implements Closeable {
+	/**
+	 * Compression level which stores entries without compressing them
+	 */
+	public static final int STORED = 0;
+	/**
+	 * 1980-02-01 00:00, the earliest date every zip implementation handles without adjusting for time zones
+	 */
+	private static final int DOS_TIME = (2 << 21) | (1 << 16);
+
+	/**
+	 * Names are always UTF-8
+	 */
+	private static final int FLAG_UTF8 = 0x800;
+	/**
+	 * Sizes and CRC follow the data, never written since both are known before writing the header
+	 */
+	private static final int FLAG_DATA_DESCRIPTOR = 0x8;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+	private final Set<String> names = new HashSet<>();
+	private final int level;
+	private final List<Deflater> deflaters = new CopyOnWriteArrayList<>();
+	private final ThreadLocal<Deflater> deflater;
+	private long count;
+	private boolean failed;
+
+	public ZipWriter(Path path) throws IOException {
+		this(path, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level {@link #STORED}, deflate level from 1 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public ZipWriter(Path path, int level) throws IOException {
+		if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.level = level;
+		this.deflater = ThreadLocal.withInitial(() -> {
+			Deflater deflater = new Deflater(level, true);
+			deflaters.add(deflater);
+			return deflater;
+		});
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * @return <code>true</code> if an entry with this name was already written
+	 */
+	public boolean contains(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * Copies an entry without decompressing it
+	 */
+	public void copy(ZipArchive archive, ZipArchive.Entry entry) throws IOException {
+		if (!names.add(entry.name)) {
+			return;
+		}
+		try {
+			long offset = writeHeader(entry.rawName, entry.flags & ~FLAG_DATA_DESCRIPTOR, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size);
+			FileChannel source = archive.getChannel();
+			long position = archive.getDataOffset(entry);
+			long remaining = entry.compressedSize;
+			while (remaining > 0) {
+				long transferred = source.transferTo(position, remaining, channel);
+				if (transferred <= 0) {
+					throw new IOException("Unexpected end of data of " + entry.name);
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+			addCentralRecord(entry.rawName, entry.flags & ~FLAG_DATA_DESCRIPTOR, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, offset);
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes an entry, compressing it on the calling thread. Directories are stored
+	 */
+	public void write(String name, byte[] data) throws IOException {
+		write(compress(name, data));
+	}
+
+	/**
+	 * Compresses entries on <code>threads</code> threads and writes them in the order of <code>names</code>.
+	 * Only a few entries ahead of the one being written are kept in memory
+	 *
+	 * @param source reads contents of an entry, called from worker threads
+	 */
+	public void writeAll(List<String> names, EntrySource source, int threads) throws IOException {
+		try {
+			writeAllEntries(names, source, threads);
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	private void writeAllEntries(List<String> names, EntrySource source, int threads) throws IOException {
+		if (threads <= 1) {
+			for (String name : names) {
+				byte[] data = source.read(name);
+				if (data != null) {
+					write(compress(name, data));
+				}
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "Zip compressor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			Deque<Future<Compressed>> pending = new ArrayDeque<>();
+			Iterator<String> iterator = names.iterator();
+			while (iterator.hasNext() || !pending.isEmpty()) {
+				while (iterator.hasNext() && pending.size() < threads * 4) {
+					String name = iterator.next();
+					pending.add(executor.submit(() -> {
+						byte[] data = source.read(name);
+						return data == null ? null : compress(name, data);
+					}));
+				}
+				Compressed compressed = pending.poll().get();
+				if (compressed != null) {
+					write(compressed);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private Compressed compress(String name, byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		byte[] compressed = null;
+		if (level != STORED && !name.endsWith("/")) {
+			compressed = deflate(data);
+		}
+		if (compressed == null || compressed.length >= data.length) {
+			return new Compressed(name, ZipEntry.STORED, (int) crc.getValue(), data, data.length);
+		}
+		return new Compressed(name, ZipEntry.DEFLATED, (int) crc.getValue(), compressed, data.length);
+	}
+
+	private void write(Compressed entry) throws IOException {
+		if (!names.add(entry.name)) {
+			return;
+		}
+		try {
+			byte[] rawName = entry.name.getBytes(StandardCharsets.UTF_8);
+			long offset = writeHeader(rawName, FLAG_UTF8, entry.method, DOS_TIME, entry.crc, entry.data.length, entry.size);
+			writeFully(ByteBuffer.wrap(entry.data));
+			addCentralRecord(rawName, FLAG_UTF8, entry.method, DOS_TIME, entry.crc, entry.data.length, entry.size, offset);
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		}
+	}
+
+	private byte[] deflate(byte[] data) {
+		Deflater deflater = this.deflater.get();
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+		byte[] buffer = new byte[8192];
+		while (!deflater.finished()) {
+			int length = deflater.deflate(buffer);
+			out.write(buffer, 0, length);
+		}
+		return out.toByteArray();
+	}
+
+	private long writeHeader(byte[] rawName, int flags, int method, int time, int crc, long compressedSize, long size) throws IOException {
+		long offset = channel.position();
+		boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+		ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE + rawName.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(LOCAL_HEADER)
+				.putShort((short) (zip64 ? ZIP64_VERSION : 20))
+				.putShort((short) flags)
+				.putShort((short) method)
+				.putInt(time)
+				.putInt(crc)
+				.putInt(zip64 ? -1 : (int) compressedSize)
+				.putInt(zip64 ? -1 : (int) size)
+				.putShort((short) rawName.length)
+				.putShort((short) (zip64 ? 20 : 0))
+				.put(rawName);
+		if (zip64) {
+			// Local headers always carry both sizes
+			header.putShort((short) ZIP64_EXTRA).putShort((short) 16).putLong(size).putLong(compressedSize);
+		}
+		header.flip();
+		writeFully(header);
+		return offset;
+	}
+
+	private void addCentralRecord(byte[] rawName, int flags, int method, int time, int crc, long compressedSize, long size, long offset) {
+		count++;
+		boolean zip64Sizes = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+		boolean zip64Offset = offset >= ZIP64_MAGIC;
+		int extraLength = zip64Sizes || zip64Offset ? 4 + (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0) : 0;
+		ByteBuffer record = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + rawName.length + extraLength).order(ByteOrder.LITTLE_ENDIAN);
+		short version = (short) (extraLength > 0 ? ZIP64_VERSION : 20);
+		record.putInt(CENTRAL_HEADER)
+				.putShort(version)
+				.putShort(version)
+				.putShort((short) flags)
+				.putShort((short) method)
+				.putInt(time)
+				.putInt(crc)
+				.putInt(zip64Sizes ? -1 : (int) compressedSize)
+				.putInt(zip64Sizes ? -1 : (int) size)
+				.putShort((short) rawName.length)
+				.putShort((short) extraLength)
+				.putShort((short) 0)
+				.putShort((short) 0)
+				.putShort((short) 0)
+				.putInt(0)
+				.putInt(zip64Offset ? -1 : (int) offset)
+				.put(rawName);
+		if (extraLength > 0) {
+			// Only fields set to 0xFFFFFFFF above, in this order
+			record.putShort((short) ZIP64_EXTRA).putShort((short) (extraLength - 4));
+			if (zip64Sizes) {
+				record.putLong(size).putLong(compressedSize);
+			}
+			if (zip64Offset) {
+				record.putLong(offset);
+			}
+		}
+		centralDirectory.write(record.array(), 0, record.position());
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Writes the central directory. If writing any entry failed, the partial file is deleted instead
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (!failed) {
+				writeCentralDirectory();
+			}
+		} catch (IOException | RuntimeException e) {
+			failed = true;
+			throw e;
+		} finally {
+			for (Deflater deflater : deflaters) {
+				deflater.end();
+			}
+			channel.close();
+			if (failed) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+
+	private void writeCentralDirectory() throws IOException {
+		long offset = channel.position();
+		long size = centralDirectory.size();
+		writeFully(ByteBuffer.wrap(centralDirectory.toByteArray()));
+		if (count >= ZIP64_MAX_COUNT || size >= ZIP64_MAGIC || offset >= ZIP64_MAGIC) {
+			long zip64End = channel.position();
+			ByteBuffer zip64 = ByteBuffer.allocate(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			zip64.putInt(ZIP64_END_HEADER)
+					.putLong(ZIP64_END_SIZE - 12)
+					.putShort((short) ZIP64_VERSION)
+					.putShort((short) ZIP64_VERSION)
+					.putInt(0)
+					.putInt(0)
+					.putLong(count)
+					.putLong(count)
+					.putLong(size)
+					.putLong(offset);
+			zip64.putInt(ZIP64_LOCATOR)
+					.putInt(0)
+					.putLong(zip64End)
+					.putInt(1);
+			zip64.flip();
+			writeFully(zip64);
+		}
+		ByteBuffer end = ByteBuffer.allocate(END_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		end.putInt(END_HEADER)
+				.putShort((short) 0)
+				.putShort((short) 0)
+				.putShort((short) Math.min(count, ZIP64_MAX_COUNT))
+				.putShort((short) Math.min(count, ZIP64_MAX_COUNT))
+				.putInt((int) Math.min(size, ZIP64_MAGIC))
+				.putInt((int) Math.min(offset, ZIP64_MAGIC))
+				.putShort((short) 0);
+		end.flip();
+		writeFully(end);
+	}
+
+	@FunctionalInterface
+	public interface EntrySource {
+		/**
+		 * @return contents of the entry or <code>null</code> to leave it out
+		 */
+		byte[] read(String name) throws IOException;
+	}
+
+	private static final class Compressed {
+		final String name;
+		final int method;
+		final int crc;
+		final byte[] data;
+		final long size;
+
+		Compressed(String name, int method, int crc, byte[] data, long size) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.data = data;
+			this.size = size;
+		}
+	}
+}
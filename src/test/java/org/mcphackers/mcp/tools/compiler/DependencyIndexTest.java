@@ -0,0 +1,52 @@
+package org.mcphackers.mcp.tools.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class DependencyIndexTest {
+
+	@Test
+	public void callerOfInheritedMemberIsAffected() {
+		DependencyIndex index = new DependencyIndex();
+		assertTrue(index.addClass(createClass("a/A", "java/lang/Object", null)));
+		assertTrue(index.addClass(createClass("a/B", "a/A", null)));
+		// Calls a method B inherits from A, its constant pool only names B
+		assertTrue(index.addClass(createClass("a/C", "java/lang/Object", "a/B")));
+		assertTrue(index.addClass(createClass("a/D", "java/lang/Object", null)));
+
+		Set<String> affected = index.getAffectedSources(Collections.singleton("a/A.java"));
+		assertEquals(new HashSet<>(Arrays.asList("a/A.java", "a/B.java", "a/C.java")), affected);
+	}
+
+	/**
+	 * @param callOwner class whose inherited <code>run()V</code> is called or <code>null</code>
+	 */
+	private static byte[] createClass(String name, String superName, String callOwner) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+		cw.visitSource(name.substring(name.lastIndexOf('/') + 1) + ".java", null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", "()V", null, null);
+		mv.visitCode();
+		if (callOwner != null) {
+			mv.visitTypeInsn(Opcodes.NEW, callOwner);
+			mv.visitInsn(Opcodes.DUP);
+			mv.visitMethodInsn(Opcodes.INVOKESPECIAL, callOwner, "<init>", "()V", false);
+			mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, callOwner, "run", "()V", false);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,230 @@
+package org.mcphackers.mcp.tools.fernflower;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mcphackers.mcp.tasks.ProgressListener;
+import org.mcphackers.mcp.tools.FileUtil;
+import org.mcphackers.mcp.tools.Util;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+public class DecompileCacheTest {
+	private static final ProgressListener NO_PROGRESS = new ProgressListener() {
+		@Override
+		public void setProgress(String progressMessage) {
+		}
+
+		@Override
+		public void setProgress(int progress) {
+		}
+	};
+
+	@Test
+	public void timedOutClassIsNotCached() throws Exception {
+		DecompileLogger logger = new DecompileLogger(NO_PROGRESS);
+		logger.setClassTimeout(1);
+		logger.startReadingClass("fixture/Slow");
+		Thread.sleep(5);
+		try {
+			logger.startMethod("run ()V");
+		} catch (RuntimeException ignored) {
+			// Fernflower catches this and moves on to the next class
+		}
+		logger.endReadingClass();
+		assertNotServedOnNextRun(logger.getReport(), "fixture/Slow");
+	}
+
+	@Test
+	public void failedMethodIsNotCached() throws Exception {
+		DecompileLogger logger = new DecompileLogger(NO_PROGRESS);
+		logger.startReadingClass("fixture/Broken");
+		logger.startClass("fixture/Broken");
+		logger.writeMessage("Method run ()V couldn't be decompiled.", new RuntimeException());
+		logger.endClass();
+		logger.endReadingClass();
+		assertNotServedOnNextRun(logger.getReport(), "fixture/Broken");
+	}
+
+	@Test
+	public void cleanClassIsCached() throws Exception {
+		DecompileLogger logger = new DecompileLogger(NO_PROGRESS);
+		logger.startReadingClass("fixture/Clean");
+		logger.startClass("fixture/Clean");
+		logger.endClass();
+		logger.endReadingClass();
+		Path cacheDir = Files.createTempDirectory("decompile-cache");
+		try {
+			byte[] source = "class Clean {}".getBytes(StandardCharsets.UTF_8);
+			Decompiler.cacheSource(newCache(cacheDir), logger.getReport(), "fixture/Clean", getKey(cacheDir, "fixture/Clean"), source);
+			assertArrayEquals(source, newCache(cacheDir).get(getKey(cacheDir, "fixture/Clean")));
+		} finally {
+			FileUtil.deleteDirectory(cacheDir);
+		}
+	}
+
+	@Test
+	public void keyDependsOnOptions() throws Exception {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("fixture/A.class", newClass("fixture/A", "java/lang/Object", null, 0));
+		Map<String, Object> options = new HashMap<>();
+		options.put("rsy", "1");
+		Map<String, Object> sameOptions = new HashMap<>(options);
+		Map<String, Object> otherOptions = new HashMap<>(options);
+		otherOptions.put("rsy", "0");
+		String key = getKey(newCache(options), "fixture/A", classes);
+		assertEquals(key, getKey(newCache(sameOptions), "fixture/A", classes));
+		assertNotEquals(key, getKey(newCache(otherOptions), "fixture/A", classes));
+	}
+
+	@Test
+	public void keyDependsOnLibraryContents() throws Exception {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("fixture/A.class", newClass("fixture/A", "java/lang/Object", null, 0));
+		Path lib = Files.createTempFile("library", ".jar");
+		try {
+			Files.write(lib, new byte[]{1});
+			List<Path> libs = Collections.singletonList(lib);
+			String key = getKey(new DecompileCache(lib.getParent(), new HashMap<>(), libs), "fixture/A", classes);
+			assertEquals(key, getKey(new DecompileCache(lib.getParent(), new HashMap<>(), libs), "fixture/A", classes));
+			// Same file name, different SHA-1
+			Files.write(lib, new byte[]{2});
+			assertNotEquals(key, getKey(new DecompileCache(lib.getParent(), new HashMap<>(), libs), "fixture/A", classes));
+		} finally {
+			Files.delete(lib);
+		}
+	}
+
+	@Test
+	public void keyDependsOnReferencedSignatures() throws Exception {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("fixture/Caller.class", newClass("fixture/Caller", "java/lang/Object", "fixture/Callee", 0));
+		classes.put("fixture/Callee.class", newClass("fixture/Callee", "java/lang/Object", null, 0));
+		String key = getKey(newCache(new HashMap<>()), "fixture/Caller", classes);
+
+		// Method bodies of other classes don't affect how the caller is decompiled
+		classes.put("fixture/Callee.class", newClass("fixture/Callee", "java/lang/Object", null, 1));
+		assertEquals(key, getKey(newCache(new HashMap<>()), "fixture/Caller", classes));
+
+		classes.put("fixture/Callee.class", newClass("fixture/Callee", "java/lang/Object", null, 0, "extra"));
+		assertNotEquals(key, getKey(newCache(new HashMap<>()), "fixture/Caller", classes));
+	}
+
+	@Test
+	public void keyDependsOnSupertypesOfReferencedClasses() throws Exception {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put("fixture/Caller.class", newClass("fixture/Caller", "java/lang/Object", "fixture/Sub", 0));
+		classes.put("fixture/Sub.class", newClass("fixture/Sub", "fixture/Base", null, 0));
+		classes.put("fixture/Base.class", newClass("fixture/Base", "java/lang/Object", null, 0));
+		String key = getKey(newCache(new HashMap<>()), "fixture/Caller", classes);
+
+		// The caller only names Sub, but overloads inherited from Base are visible through it
+		classes.put("fixture/Base.class", newClass("fixture/Base", "java/lang/Object", null, 0, "extra"));
+		assertNotEquals(key, getKey(newCache(new HashMap<>()), "fixture/Caller", classes));
+	}
+
+	@Test
+	public void pruneKeepsRecentlyUsedSources() throws Exception {
+		Path cacheDir = Files.createTempDirectory("decompile-cache");
+		try {
+			DecompileCache cache = newCache(cacheDir);
+			String old = Util.toHex(new byte[]{0, 1});
+			String used = Util.toHex(new byte[]{0, 2});
+			String recent = Util.toHex(new byte[]{0, 3});
+			cache.put(old, new byte[100]);
+			cache.put(used, new byte[100]);
+			cache.put(recent, new byte[100]);
+			long now = System.currentTimeMillis();
+			Files.setLastModifiedTime(cacheDir.resolve("00").resolve(old), FileTime.fromMillis(now - 30000));
+			Files.setLastModifiedTime(cacheDir.resolve("00").resolve(used), FileTime.fromMillis(now - 20000));
+			Files.setLastModifiedTime(cacheDir.resolve("00").resolve(recent), FileTime.fromMillis(now - 10000));
+			// Reading an entry makes it the most recently used one
+			cache.get(used);
+			FileUtil.pruneLeastRecentlyUsed(cacheDir, 100);
+			assertNull(cache.get(old));
+			assertNull(cache.get(recent));
+			assertArrayEquals(new byte[100], cache.get(used));
+		} finally {
+			FileUtil.deleteDirectory(cacheDir);
+		}
+	}
+
+	private static void assertNotServedOnNextRun(DecompileReport report, String className) throws IOException {
+		Path cacheDir = Files.createTempDirectory("decompile-cache");
+		try {
+			byte[] source = "// incomplete".getBytes(StandardCharsets.UTF_8);
+			Decompiler.cacheSource(newCache(cacheDir), report, className, getKey(cacheDir, className), source);
+			// A fresh cache, as on the next run of decompile
+			assertNull(newCache(cacheDir).get(getKey(cacheDir, className)));
+		} finally {
+			FileUtil.deleteDirectory(cacheDir);
+		}
+	}
+
+	private static String getKey(Path cacheDir, String className) throws IOException {
+		Map<String, byte[]> classes = new HashMap<>();
+		classes.put(className + ".class", newClass(className, "java/lang/Object", null, 0));
+		return getKey(newCache(cacheDir), className, classes);
+	}
+
+	private static String getKey(DecompileCache cache, String className, Map<String, byte[]> classes) {
+		List<String> group = Collections.singletonList(className + ".class");
+		return cache.getKey(group, classes, DecompileCache.getSignatures(classes));
+	}
+
+	private static DecompileCache newCache(Path cacheDir) throws IOException {
+		return new DecompileCache(cacheDir, new HashMap<>(), Collections.emptyList());
+	}
+
+	private static DecompileCache newCache(Map<String, Object> options) throws IOException {
+		return new DecompileCache(Paths.get("cache"), options, Collections.emptyList());
+	}
+
+	/**
+	 * @param callee       class whose static <code>run()V</code> is called from <code>run()V</code> of this class or <code>null</code>
+	 * @param constant     value returned by <code>get()I</code>, only changes the method body
+	 * @param extraMethods names of additional <code>()V</code> methods
+	 */
+	private static byte[] newClass(String name, String superName, String callee, int constant, String... extraMethods) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", "()V", null, null);
+		mv.visitCode();
+		if (callee != null) {
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, callee, "run", "()V", false);
+		}
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "get", "()I", null, null);
+		mv.visitCode();
+		mv.visitLdcInsn(constant);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+		for (String method : extraMethods) {
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, method, "()V", null, null);
+			mv.visitCode();
+			mv.visitInsn(Opcodes.RETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -0,0 +1,122 @@
+package org.mcphackers.mcp.tools.injector;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mcphackers.mcp.tasks.TaskDecompile;
+import org.mcphackers.rdi.injector.data.ClassStorage;
+import org.mcphackers.rdi.nio.RDInjector;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+
+public class ParallelTransformTest {
+	private static final int CLASSES = 300;
+
+	@Test
+	public void parallelMatchesSerial() {
+		Map<String, byte[]> fixture = createFixture();
+		Map<String, byte[]> serial = transform(fixture, 1);
+		Map<String, byte[]> parallel = transform(fixture, 4);
+		assertEquals(serial.keySet(), parallel.keySet());
+		for (Map.Entry<String, byte[]> entry : serial.entrySet()) {
+			assertArrayEquals(entry.getKey(), entry.getValue(), parallel.get(entry.getKey()));
+		}
+	}
+
+	/**
+	 * Same steps as TaskDecompile.applyInjector after the storage is read
+	 */
+	private static Map<String, byte[]> transform(Map<String, byte[]> fixture, int threads) {
+		List<ClassNode> nodes = new ArrayList<>();
+		for (byte[] bytes : fixture.values()) {
+			ClassNode node = new ClassNode();
+			new ClassReader(bytes).accept(node, 0);
+			nodes.add(node);
+		}
+		RDInjector injector = new RDInjector();
+		injector.setStorage(new ClassStorage(nodes));
+		GLConstantTables glConstants = GLConstantTables.getDefault();
+		if (threads > 1) {
+			injector.transform();
+			ParallelTransform.apply(injector.getStorage(), threads, rangeInjector -> TaskDecompile.addPerClassTransforms(rangeInjector, glConstants));
+		} else {
+			TaskDecompile.addPerClassTransforms(injector, glConstants);
+		}
+		injector.restoreSourceFile();
+		injector.fixInnerClasses();
+		injector.fixImplicitConstructors();
+		injector.transform();
+
+		Map<String, byte[]> output = new LinkedHashMap<>();
+		for (ClassNode node : injector.getStorage()) {
+			ClassWriter writer = new ClassWriter(0);
+			node.accept(writer);
+			output.put(node.name, writer.toByteArray());
+		}
+		return output;
+	}
+
+	/**
+	 * Classes with GL and keyboard constants, common constants, locals and inner classes,
+	 * enough of them to be split into several ranges
+	 */
+	private static Map<String, byte[]> createFixture() {
+		Map<String, byte[]> classes = new LinkedHashMap<>();
+		for (int i = 0; i < CLASSES; i++) {
+			String name = "fixture/C" + i;
+			String inner = name + "$Inner";
+
+			ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			cw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, i == 0 ? "java/lang/Object" : "fixture/C" + (i - 1), null);
+			cw.visitInnerClass(inner, name, "Inner", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+			addConstructor(cw, i == 0 ? "java/lang/Object" : "fixture/C" + (i - 1));
+			MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "render", "(I)F", null, null);
+			mv.visitCode();
+			mv.visitIntInsn(Opcodes.SIPUSH, 3553);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/lwjgl/opengl/GL11", "glEnable", "(I)V", false);
+			mv.visitIntInsn(Opcodes.BIPUSH, 57);
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, "org/lwjgl/input/Keyboard", "isKeyDown", "(I)Z", false);
+			mv.visitVarInsn(Opcodes.ISTORE, 2);
+			mv.visitVarInsn(Opcodes.ILOAD, 1);
+			mv.visitIntInsn(Opcodes.SIPUSH, i);
+			mv.visitInsn(Opcodes.IADD);
+			mv.visitVarInsn(Opcodes.ISTORE, 1);
+			mv.visitVarInsn(Opcodes.ILOAD, 1);
+			mv.visitInsn(Opcodes.I2F);
+			mv.visitLdcInsn(3.1415927F);
+			mv.visitInsn(Opcodes.FMUL);
+			mv.visitInsn(Opcodes.FRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+			cw.visitEnd();
+			classes.put(name, cw.toByteArray());
+
+			ClassWriter icw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+			icw.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, inner, null, "java/lang/Object", null);
+			icw.visitInnerClass(inner, name, "Inner", Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC);
+			addConstructor(icw, "java/lang/Object");
+			icw.visitEnd();
+			classes.put(inner, icw.toByteArray());
+		}
+		return classes;
+	}
+
+	private static void addConstructor(ClassWriter cw, String superName) {
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+}